@@ -34,11 +34,20 @@ import javax.sound.sampled.*;
 
 public class AudioPlayer implements Runnable {
 
-    private final CircularBuffer buffer = CircularBuffer.getInstance();
+    private final CircularBuffer buffer;
     private SourceDataLine sdl;
 
 
 
+    /**
+     * Construct the {@link AudioPlayer}.
+     *
+     * @param buffer the buffer the machine puts its audio samples into
+     */
+    public AudioPlayer(CircularBuffer buffer) { this.buffer = buffer; }
+
+
+
     @Override
     public void run() {
         try {
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample;
+
+import sample.cpu.CpuState;
+import sample.device.Memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+
+
+/**
+ * Saves a machine as a base image followed by incremental checkpoints,
+ * so that periodic saves only write the memory that changed.
+ *
+ * <pre>
+ * The base image holds all the RAM pages. Every checkpoint after it holds the
+ * pages written to since the base image, as marked dirty by the memory, and
+ * replaces the previous checkpoint. Loading takes the base image, then the
+ * checkpoint made on top of it, if any. A new base image is written once the
+ * checkpoint would hold more than half the RAM.
+ *
+ * .-----------------------------------------------------------.
+ * | content of both files, big endian                         |
+ * |-----------------------------------------------------------|
+ * | int     | magic, "Z80C"                                   |
+ * | int     | format version                                  |
+ * | long    | the id of the base image                        |
+ * | int     | cpu state version, then the cpu state ints      |
+ * | byte    | border color                                    |
+ * | long    | the pages included, page n as bit n             |
+ * | 1K each | the pages, in order                             |
+ * `-----------------------------------------------------------'
+ *
+ * The base image goes to the given file, the checkpoint next to it, with
+ * the .inc extension added. The memory pages are the ones of {@link Memory}.
+ * </pre>
+ */
+public final class Checkpointer {
+
+    private static final int MAGIC = 0x5A383043;    // "Z80C"
+    private static final int VERSION = 1;
+
+    // the RAM pages, the ROM is never saved
+    private static final long RAM_PAGES = -1L << (0x4000 >>> Memory.PAGE_SHIFT);
+
+    private final File baseFile;
+    private final File incrementFile;
+
+    private long baseId = 0;        // 0 until a base image is written or loaded
+    private long sinceBase = 0;     // the pages written to since the base image
+    private long readId;            // the base image id of the file read last
+
+    private final CpuState cpuState = new CpuState();
+    private final int[] cpuData = new int[CpuState.size()];
+
+
+
+    /**
+     * @param file the file of the base image
+     */
+    public Checkpointer(String file) {
+        baseFile = new File(file);
+        incrementFile = new File(file + ".inc");
+    }
+
+
+
+    /**
+     * Save the machine, as a checkpoint on top of the base image,
+     * or as a new base image if there is none yet or too much changed.
+     * Run between frames, on the emulation thread.
+     *
+     * @param machine the machine
+     * @return the number of memory pages written
+     * @throws IOException if writing fails
+     */
+    public int checkpoint(Machine machine) throws IOException {
+        sinceBase |= machine.getBus().getMemoryDevice().takeDirtyPages() & RAM_PAGES;
+
+        if (baseId == 0 || Long.bitCount(sinceBase) > Long.bitCount(RAM_PAGES) / 2) {
+            baseId = System.currentTimeMillis();
+            write(baseFile, machine, RAM_PAGES);
+            incrementFile.delete();
+            sinceBase = 0;
+            return Long.bitCount(RAM_PAGES);
+        }
+
+        write(incrementFile, machine, sinceBase);
+        return Long.bitCount(sinceBase);
+    }
+
+
+
+    /**
+     * Load the base image, and the checkpoint on top of it, into the machine.
+     * Further checkpoints are made on top of the loaded base image.
+     * A checkpoint made on top of another base image, left behind when the
+     * new base image was written but the old checkpoint not yet deleted,
+     * is ignored and deleted.
+     *
+     * @param machine the machine
+     * @throws IOException if reading fails, or the base image is missing
+     */
+    public void load(Machine machine) throws IOException {
+        read(baseFile, machine, 0);
+        baseId = readId;
+        sinceBase = 0;
+        // the next checkpoint still has to hold the pages of the loaded one
+        if (incrementFile.exists()) {
+            if (baseIdOf(incrementFile) == baseId) {
+                sinceBase = read(incrementFile, machine, baseId);
+            } else {
+                System.out.println("Ignoring a checkpoint not made on top of the base image: " + incrementFile);
+                incrementFile.delete();
+            }
+        }
+
+        machine.getBus().getMemoryDevice().takeDirtyPages();
+        machine.getCpu().invalidateBlocks();
+    }
+
+
+
+    private void write(File file, Machine machine, long pages) throws IOException {
+        machine.getCpu().syncFlags();
+        machine.getCpu().capture(cpuState);
+        cpuState.writeTo(cpuData, 0);
+
+        Memory memory = machine.getBus().getMemoryDevice();
+        byte[] page = new byte[Memory.PAGE_SIZE];
+
+        // written aside first, so that a crash never leaves a half written file
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(baseId);
+            out.writeInt(CpuState.VERSION);
+            for (int value : cpuData) { out.writeInt(value); }
+            out.writeByte(machine.getBus().getBorderColor());
+            out.writeLong(pages);
+
+            for (int n = 0; n < Memory.PAGE_COUNT; n++) {
+                if ((pages & (1L << n)) == 0) { continue; }
+
+                int address = n << Memory.PAGE_SHIFT;
+                for (int i = 0; i < page.length; i++) { page[i] = (byte) memory.readByte(address + i); }
+                out.write(page);
+            }
+        }
+
+        Files.move(temporary.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+
+
+    /**
+     * @return the id of the base image the file was made on top of
+     */
+    private static long baseIdOf(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) { throw new IOException("Not a checkpoint: " + file); }
+            return in.readLong();
+        }
+    }
+
+
+
+    /**
+     * @param expectedBaseId the base image the file must be made on top of, or 0 for a base image
+     * @return the pages read
+     */
+    private long read(File file, Machine machine, long expectedBaseId) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) { throw new IOException("Not a checkpoint: " + file); }
+
+            readId = in.readLong();
+            if (expectedBaseId != 0 && readId != expectedBaseId) {
+                throw new IOException("The checkpoint was not made on top of the base image: " + file);
+            }
+
+            int cpuVersion = in.readInt();
+            for (int i = 0; i < cpuData.length; i++) { cpuData[i] = in.readInt(); }
+            int border = in.readUnsignedByte();
+            long pages = in.readLong();
+
+            Memory memory = machine.getBus().getMemoryDevice();
+            byte[] page = new byte[Memory.PAGE_SIZE];
+            for (int n = 0; n < Memory.PAGE_COUNT; n++) {
+                if ((pages & (1L << n)) == 0) { continue; }
+
+                in.readFully(page);
+                memory.load(n << Memory.PAGE_SHIFT, page, 0, page.length);
+            }
+
+            cpuState.readFrom(cpuVersion, cpuData, 0);
+            machine.restoreCpu(cpuState);
+            machine.getBus().setBorderColor(border);
+            return pages;
+        }
+    }
+}
@@ -28,6 +28,7 @@ package sample;
 
 import sample.bus.SpecBus;
 import sample.cpu.Z80;
+import sample.debug.DebuggerConfig;
 import sample.device.Clock;
 import sample.utils.CircularBuffer;
 import sample.utils.FileUtils;
@@ -59,6 +60,14 @@ public class Computer extends JFrame {
     private static final int H = 192;
     private static final String WINDOW_TITLE = "CIP-ZT 48K Emulator";
 
+    // the rewind budget, from -Drewind=megabytes. 0 disables rewinding.
+    // with a state every frame, 20MB hold about a minute of typical play.
+    private static final int REWIND_BUDGET_MB = Integer.getInteger("rewind", 20);
+
+    // the autosave period, from -Dautosave=seconds, 0 by default to disable it.
+    // the machine is saved incrementally to autosave.ckpt, see Checkpointer.
+    private static final int AUTOSAVE_SECONDS = Integer.getInteger("autosave", 0);
+
     private float scale = 3.0f;
     private int screenW = Math.round(W * scale);
     private int screenH = Math.round(H * scale);
@@ -239,11 +248,22 @@ public class Computer extends JFrame {
 
         // not included with sample
 
+        // the machine itself. the worker only adds the window, the pacing and the audio thread
+        private final Machine machine = new Machine(DebuggerConfig.fromCommandLine());
+
+        // the last states of the machine, to run it backwards while F12 is held
+        private final RewindBuffer rewindBuffer = REWIND_BUDGET_MB > 0
+                ? new RewindBuffer(REWIND_BUDGET_MB << 20, 1, 50) : null;
+
+        // the periodic incremental saves, 50 frames a second
+        private final Checkpointer checkpointer = AUTOSAVE_SECONDS > 0 ? new Checkpointer("autosave.ckpt") : null;
+        private int framesSinceAutosave = 0;
+
         /** Construct the {@link ComputerWorker}. */
         private ComputerWorker() {
-            bus = new SpecBus();
-            pixelHandler = new PixelHandler(bus);
-            cpu = new Z80(bus);
+            bus = machine.getBus();
+            pixelHandler = machine.getPixelHandler();
+            cpu = machine.getCpu();
 
             clock = new Clock();
             clock.addClockedDevice(cpu);
@@ -253,12 +273,21 @@ public class Computer extends JFrame {
             // even allow a 1ms margin later on.
             frameDuration = 20_000_000;
             // a complete frame takes 69888 clock cycles / t-states
-            clockCyclesPerFrame = 69_888;
+            clockCyclesPerFrame = Machine.CLOCK_CYCLES_PER_FRAME;
 
-            audioBuffer = CircularBuffer.getInstance();
+            audioBuffer = machine.getAudioBuffer();
             // we take one averaged audio sample after every
             // 'audioSampleAtClockCycle' number of clock cycles.
-            audioSampleAtClockCycle = 76;
+            audioSampleAtClockCycle = Machine.AUDIO_SAMPLE_AT_CLOCK_CYCLE;
+
+            if (DebuggerConfig.HST_MODE) {
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread(() -> machine.exportHistogram("histogram.csv")));
+            }
+            if (DebuggerConfig.IOP_MODE) {
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread(() -> machine.exportIoProfile("ioprofile.txt")));
+            }
         }
 
 
@@ -290,18 +319,30 @@ public class Computer extends JFrame {
 
                 // not included with sample
 
-                while (tStates < clockCyclesPerFrame) {  // 69888 clock cycles
-                    // not included with sample
-                }
-
-                // on the real hardware, as far as i know, the cpu interrupt is
-                // generated at the end of the ~20ms frame / 69888 clock cycles.
-                // in our case it doesn't really matter if we generate it
-                // before or after the extra wait period.
-                cpu.interrupt();
-                // update the audio thread with new samples only if not muted
-                if (!muted) {
-                    updateAudioSamples(audioSamples);
+                // while rewinding, every frame shows the previous captured state instead
+                int rewoundTStates = rewindBuffer != null && keyboardListener.isRewindHeld()
+                        ? rewindBuffer.rewind(machine) : -1;
+                if (rewoundTStates >= 0) {
+                    tStates = rewoundTStates;
+                } else {
+                    if (machine.getConfig().isStepMode()) {
+                        // step by step debugging needs the clock to tick every cycle
+                        while (tStates < clockCyclesPerFrame) {  // 69888 clock cycles
+                            // not included with sample
+                        }
+                        // the frame interrupt is one of the machine's scheduled events
+                        machine.getScheduler().dispatch(cpu.getCycleCount());
+                    } else {
+                        tStates = machine.runFrame(tStates, audioSamples);
+                    }
+
+                    // update the audio thread with new samples only if not muted
+                    if (!muted) {
+                        updateAudioSamples(audioSamples);
+                    }
+
+                    if (rewindBuffer != null) { rewindBuffer.frameDone(machine, tStates); }
+                    if (checkpointer != null && ++framesSinceAutosave >= AUTOSAVE_SECONDS * 50) { autosave(); }
                 }
 
                 // not included with sample
@@ -310,12 +351,30 @@ public class Computer extends JFrame {
 
 
 
+        /**
+         * Save the machine incrementally, only the memory
+         * pages changed since the last base image are written.
+         */
+        private void autosave() {
+            framesSinceAutosave = 0;
+            try {
+                checkpointer.checkpoint(machine);
+            } catch (IOException e) {
+                System.out.println("Unable to autosave: " + e.getMessage());
+            }
+        }
+
+
+
         /**
          * Create and start the audio thread.
          * Hint that the audio thread should have max priority.
          */
         private void startAudioThread() {
-            // not included with sample
+            Thread audioThread = new Thread(new AudioPlayer(audioBuffer), "audio");
+            audioThread.setPriority(Thread.MAX_PRIORITY);
+            audioThread.setDaemon(true);
+            audioThread.start();
         }
 
 
@@ -385,6 +444,10 @@ public class Computer extends JFrame {
                 System.out.println("Snapshot has no content!");
                 return;
             }
+            // settle any pending lazy flags before F gets overwritten
+            cpu.syncFlags();
+            // the memory is loaded directly, the cached blocks are stale
+            cpu.invalidateBlocks();
             // not included with sample
         }
 
@@ -406,6 +469,7 @@ public class Computer extends JFrame {
             }
 
             int[] snapshot = new int[49179]; // 48k
+            cpu.syncFlags();
 
             // not included with sample
         }
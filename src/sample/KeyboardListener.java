@@ -37,6 +37,9 @@ public final class KeyboardListener implements KeyListener {
 
     private final int[] keyboardBuffer = new int[8];
 
+    // held down to run the machine backwards, read by the emulation thread
+    private volatile boolean rewindHeld = false;
+
 
 
     public KeyboardListener() {
@@ -57,6 +60,8 @@ public final class KeyboardListener implements KeyListener {
         int keyLocation = e.getKeyLocation();
         int keyCode = e.getKeyCode();
 
+        if (keyCode == KeyEvent.VK_F12) { rewindHeld = true; }
+
         // 0xfefe  CAPS SHIFT?, Z, X, C, V
         if (keyCode == KeyEvent.VK_SHIFT
                 && keyLocation == KeyEvent.KEY_LOCATION_LEFT) {
@@ -75,6 +80,8 @@ public final class KeyboardListener implements KeyListener {
         int keyLocation = e.getKeyLocation();
         int keyCode = e.getKeyCode();
 
+        if (keyCode == KeyEvent.VK_F12) { rewindHeld = false; }
+
         // 0xfefe  SHIFT, Z, X, C, V
         if (keyCode == KeyEvent.VK_SHIFT
                 && keyLocation == KeyEvent.KEY_LOCATION_LEFT) {
@@ -89,4 +96,11 @@ public final class KeyboardListener implements KeyListener {
 
 
     public int[] getKeyboardBuffer() { return keyboardBuffer; }
+
+
+
+    /**
+     * @return true while the rewind key, F12, is held down
+     */
+    public boolean isRewindHeld() { return rewindHeld; }
 }
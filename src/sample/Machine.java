@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample;
+
+import sample.bus.SpecBus;
+import sample.cpu.CpuState;
+import sample.cpu.Z80;
+import sample.debug.DebuggerConfig;
+import sample.debug.OpcodeHistogram;
+import sample.debug.PcSampler;
+import sample.debug.TraceRecorder;
+import sample.device.Scheduler;
+import sample.utils.CircularBuffer;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+
+
+
+/**
+ * A ZX Spectrum 48k machine, without any user interface.
+ *
+ * <pre>
+ * Everything a machine runs on is owned by its instance: the bus with the
+ * memory, the ports and the input buffers, the cpu, the pixel handler,
+ * the audio buffer, the scheduler and the debugging options.
+ * Any number of machines can run side by side in the same process,
+ * each one on its own thread.
+ *
+ * The {@link Computer} window drives one of these, frame by frame.
+ * Headless, a machine is driven with {@link #runFrame()}.
+ * </pre>
+ */
+public final class Machine {
+
+    // a complete frame takes 69888 clock cycles / t-states
+    public static final int CLOCK_CYCLES_PER_FRAME = 69_888;
+
+    // one averaged audio sample is taken every 76 clock cycles
+    public static final int AUDIO_SAMPLE_AT_CLOCK_CYCLE = 76;
+
+    // the number of ports in the I/O profile
+    private static final int IO_PROFILE_PORTS = 32;
+
+    // the registers precede the memory in a SNA snapshot
+    private static final int SNA_HEADER = 27;
+
+    private final DebuggerConfig config;
+    private final SpecBus bus;
+    private final Z80 cpu;
+    private final PixelHandler pixelHandler;
+    private final CircularBuffer audioBuffer;
+
+    // the trace of the last executed instructions, null when not tracing
+    private final TraceRecorder trace;
+
+    // timed device events, the cpu runs whole instructions in between
+    private final Scheduler scheduler = new Scheduler();
+
+    // the frame interrupt, due at the end of every frame
+    private final Scheduler.Event frameInterrupt = this::frameEnded;
+
+    // the cycle count the next audio sample starts at. the samples are made at the
+    // end of every frame, from the EAR output changes recorded by the bus, so the
+    // sampling never stops the cpu. the sample periods run across the frame boundaries.
+    private long nextSampleAt = 0;
+
+    // used by the headless frames
+    private final byte[] audioSamples = new byte[CLOCK_CYCLES_PER_FRAME / AUDIO_SAMPLE_AT_CLOCK_CYCLE + 1];
+    private int overshoot = 0;
+    private long frameCount = 0;
+
+
+
+    /**
+     * Construct a machine with its own audio buffer.
+     *
+     * @param config the debugging options of the machine
+     */
+    public Machine(DebuggerConfig config) {
+        this(config, new CircularBuffer());
+    }
+
+
+
+    /**
+     * Construct a machine.
+     *
+     * @param config the debugging options of the machine
+     * @param audioBuffer the buffer the machine puts its audio samples into
+     */
+    public Machine(DebuggerConfig config, CircularBuffer audioBuffer) {
+        this(config, audioBuffer, new SpecBus());
+    }
+
+
+
+    private Machine(DebuggerConfig config, CircularBuffer audioBuffer, SpecBus bus) {
+        this.config = config;
+        this.audioBuffer = audioBuffer;
+        this.bus = bus;
+
+        pixelHandler = new PixelHandler(bus);
+        cpu = new Z80(bus, config);
+
+        bus.setCycleSource(cpu::getInstructionCycle);
+
+        trace = config.getTraceSize() > 0 ? new TraceRecorder(config.getTraceSize()) : null;
+        cpu.setTraceRecorder(trace);
+
+        if (DebuggerConfig.IOP_MODE) { bus.getPorts().setCounting(true); }
+
+        scheduleFrameInterrupt();
+    }
+
+
+
+    /**
+     * Fork the machine between two frames. The fork starts in the same state,
+     * on the same memory, and goes its own way from then on. The memory is
+     * shared until written, so a fork costs little more than the machine's
+     * own arrays, whatever the memory content.
+     *
+     * <pre>
+     * The fork runs with the plain interpreter, the fast paths are set up
+     * on its cpu as needed. Its audio goes into a buffer of its own, one frame
+     * long. A fork no longer needed is discarded with {@link #discard()}.
+     * </pre>
+     *
+     * @return the fork
+     */
+    public Machine fork() {
+        Machine fork = new Machine(config, new CircularBuffer(audioSamples.length), bus.fork());
+        fork.cpu.copyState(cpu);
+        fork.scheduleFrameInterrupt();
+        fork.nextSampleAt = nextSampleAt;
+        fork.overshoot = overshoot;
+        fork.frameCount = frameCount;
+        return fork;
+    }
+
+
+
+    /**
+     * Discard a fork, giving up the memory it still shares.
+     * The machine must not be run afterwards.
+     */
+    public void discard() {
+        bus.getMemoryDevice().discard();
+    }
+
+
+
+    /**
+     * Load the ROM, or any other initial memory content,
+     * starting with address 0.
+     *
+     * @param rom the memory content
+     */
+    public void loadRom(byte[] rom) {
+        bus.getMemoryDevice().load(0, rom, 0, rom.length);
+        cpu.invalidateBlocks();
+    }
+
+
+
+    /**
+     * Load a 48K SNA snapshot. The snapshot's program counter is popped off
+     * its stack, the way the RETN the format relies on would.
+     *
+     * @param sna the snapshot content
+     */
+    public void loadSNA(byte[] sna) {
+        if (sna.length != SNA_HEADER + 0xc000) {
+            throw new IllegalArgumentException("Not a 48K SNA snapshot");
+        }
+
+        bus.getMemoryDevice().load(0x4000, sna, SNA_HEADER, 0xc000);
+        bus.setBorderColor(sna[SNA_HEADER - 1] & 0x07);
+
+        CpuState state = new CpuState();
+        cpu.syncFlags();
+        cpu.capture(state);
+        state.readSNAHeader(sna);
+
+        byte[] memory = bus.getMemory();
+        int sp = state.getSP();
+        state.setPC((memory[sp] & 0xff) | (memory[(sp + 1) & 0xffff] & 0xff) << 8);
+        state.setSP(sp + 2);
+
+        cpu.restore(state);
+        cpu.invalidateBlocks();
+    }
+
+
+
+    /**
+     * Put the cpu back in a captured state, for example when rewinding,
+     * along with the timing of the audio sampling. The memory is left as it is.
+     *
+     * @param state the state to restore
+     */
+    public void restoreCpu(CpuState state) {
+        cpu.restore(state);
+        scheduleFrameInterrupt();
+
+        bus.dropEARChanges();
+        nextSampleAt = cpu.getCycleCount();
+    }
+
+
+
+    /**
+     * Run one complete frame, the frame interrupt is generated at its end.
+     * The audio samples of the frame end up in the audio buffer.
+     */
+    public void runFrame() {
+        int tStates = runFrame(overshoot, audioSamples);
+        overshoot = tStates - CLOCK_CYCLES_PER_FRAME;
+
+        audioBuffer.put(audioSamples);
+        frameCount++;
+    }
+
+
+
+    /**
+     * Run the rest of the current frame whole instructions at a time.
+     * The cpu only stops when the next scheduled event is due,
+     * and the due events are dispatched. The audio samples are made
+     * at the end, one per {@link #AUDIO_SAMPLE_AT_CLOCK_CYCLE} cycles run,
+     * up to the length of the sample array.
+     *
+     * @param tStates the number of T-states of the current frame already run
+     * @param samples the current frame's audio samples
+     * @return the number of T-states of the frame run, possibly past its end
+     */
+    public int runFrame(int tStates, byte[] samples) {
+        long frameStart = cpu.getCycleCount() - tStates;
+        long frameEnd = frameStart + CLOCK_CYCLES_PER_FRAME;
+
+        try {
+            runUntil(frameEnd);
+        } catch (RuntimeException e) {
+            dumpTrace("trace.log");
+            throw e;
+        }
+
+        int count = (int) ((cpu.getCycleCount() - nextSampleAt) / AUDIO_SAMPLE_AT_CLOCK_CYCLE);
+        bus.takeEARSamples(nextSampleAt, AUDIO_SAMPLE_AT_CLOCK_CYCLE, count, samples);
+        nextSampleAt += (long) count * AUDIO_SAMPLE_AT_CLOCK_CYCLE;
+
+        return (int) (cpu.getCycleCount() - frameStart);
+    }
+
+
+
+    /**
+     * Run whole instructions up to the given cycle count, or just past it.
+     * The cpu stops whenever the next scheduled event is due,
+     * and the due events are dispatched, the frame interrupt among them.
+     *
+     * @param target the cycle count to run to
+     */
+    public void runUntil(long target) {
+        while (cpu.getCycleCount() < target) {
+            cpu.runUntil(Math.min(scheduler.getNextEventCycle(), target));
+            scheduler.dispatch(cpu.getCycleCount());
+        }
+    }
+
+
+
+    /**
+     * Generate the frame interrupt and schedule the next one, a frame later.
+     *
+     * <pre>
+     * On the real hardware, as far as i know, the cpu interrupt is generated
+     * at the end of the ~20ms frame / 69888 clock cycles. The frames end at
+     * the multiples of {@link #CLOCK_CYCLES_PER_FRAME}, counted from the
+     * cycle count 0 the cpu starts at.
+     * </pre>
+     */
+    private void frameEnded(Scheduler scheduler, long cycle) {
+        cpu.interrupt();
+        scheduler.schedule(frameInterrupt, cycle + CLOCK_CYCLES_PER_FRAME);
+    }
+
+
+
+    /**
+     * Schedule the frame interrupt at the end of the current frame,
+     * for example once the cpu's cycle count was restored.
+     */
+    private void scheduleFrameInterrupt() {
+        scheduler.cancel(frameInterrupt);
+        scheduler.schedule(frameInterrupt, (cpu.getCycleCount() / CLOCK_CYCLES_PER_FRAME + 1) * CLOCK_CYCLES_PER_FRAME);
+    }
+
+
+
+    /**
+     * Export the per instruction counters as CSV, or as JSON if the file name ends with .json.
+     * Does nothing unless the counting was enabled with -Dhistogram.
+     *
+     * @param fileName the file to export the counters to
+     */
+    public void exportHistogram(String fileName) {
+        OpcodeHistogram histogram = cpu.getHistogram();
+        if (histogram == null) { return; }
+
+        try (PrintStream out = new PrintStream(fileName)) {
+            if (fileName.endsWith(".json")) {
+                histogram.writeJson(out);
+            } else {
+                histogram.writeCsv(out);
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println("Unable to export the histogram: " + e.getMessage());
+        }
+    }
+
+
+
+    /**
+     * Export the busiest ports with their read and write counts.
+     * Does nothing unless the counting was enabled with -Dioprofile.
+     *
+     * @param fileName the file to export the counts to
+     */
+    public void exportIoProfile(String fileName) {
+        if (!DebuggerConfig.IOP_MODE) { return; }
+
+        try (PrintStream out = new PrintStream(fileName)) {
+            bus.getPorts().report(out, IO_PROFILE_PORTS);
+        } catch (FileNotFoundException e) {
+            System.out.println("Unable to export the I/O profile: " + e.getMessage());
+        }
+    }
+
+
+
+    /**
+     * Start sampling the guest code, replacing any previous samples.
+     *
+     * @param period the number of T-states between two samples
+     * @param sampleStack true to sample the stack depth as well
+     * @return the sampler
+     */
+    public PcSampler startProfiling(int period, boolean sampleStack) {
+        PcSampler sampler = new PcSampler(period, sampleStack);
+        cpu.setPcSampler(sampler);
+        return sampler;
+    }
+
+
+
+    /** Stop sampling the guest code. */
+    public void stopProfiling() {
+        cpu.setPcSampler(null);
+    }
+
+
+
+    /**
+     * Dump the trace of the last executed instructions in readable form, if tracing.
+     *
+     * @param fileName the file to dump the trace to
+     */
+    public void dumpTrace(String fileName) {
+        if (trace == null) { return; }
+
+        try (PrintStream out = new PrintStream(fileName)) {
+            trace.dumpText(out);
+        } catch (FileNotFoundException e) {
+            System.out.println("Unable to dump the trace: " + e.getMessage());
+        }
+    }
+
+
+
+    public DebuggerConfig getConfig() { return config; }
+
+
+
+    public SpecBus getBus() { return bus; }
+
+
+
+    public Z80 getCpu() { return cpu; }
+
+
+
+    public PixelHandler getPixelHandler() { return pixelHandler; }
+
+
+
+    public CircularBuffer getAudioBuffer() { return audioBuffer; }
+
+
+
+    public Scheduler getScheduler() { return scheduler; }
+
+
+
+    public TraceRecorder getTraceRecorder() { return trace; }
+
+
+
+    /**
+     * @return the number of frames run headless
+     */
+    public long getFrameCount() { return frameCount; }
+}
@@ -36,7 +36,7 @@ import static sample.utils.PixelColorTools.getRgbColor;
 public class PixelHandler {
 
     private final SpecBus bus;
-    private final int[] pixels = new int[256 * 192];
+    private int[] pixels;   // allocated on first use, forked machines may never need it
 
 
 
@@ -53,6 +53,8 @@ public class PixelHandler {
      * @return the final decoded pixels/bitmap
      */
     public int[] getPixels(int frameNumber) {
+        if (pixels == null) { pixels = new int[256 * 192]; }
+
         // get the rearranged screen bytes
         int[] linearPixelBytes = bus.getScreenFile();
 
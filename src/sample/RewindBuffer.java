@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample;
+
+import sample.cpu.CpuState;
+import sample.device.Memory;
+
+
+
+/**
+ * Keeps the last states of a machine in a ring of bytes of fixed size,
+ * so that the machine can be run backwards, one captured state at a time.
+ *
+ * <pre>
+ * A state is captured every few frames, on the emulation thread, between two
+ * frames. Only the RAM changes from one state to the next, the ROM is left out.
+ * Every so often the RAM is stored as is, as a keyframe. In between, the
+ * states only store how the RAM differs from the last keyframe: the two are
+ * XOR-ed and the zero runs of the result are run-length encoded.
+ *
+ * .----------------------------------------------------------------.
+ * | bytes       | content of one state                             |
+ * |----------------------------------------------------------------|
+ * | 1           | KEYFRAME or DELTA                                |
+ * | 4           | the T-states of the frame run, past its end      |
+ * | 1           | the border color                                 |
+ * | 4 * 34      | the cpu state, see CpuState                      |
+ * | 48K         | a keyframe's RAM, or                             |
+ * | varies      | a delta's runs: zero count, literal count and    |
+ * |             | the literal bytes, the counts as varints         |
+ * `----------------------------------------------------------------'
+ *
+ * Once the ring is full, the oldest states are dropped to make room,
+ * a keyframe along with all its deltas. Rewinding takes the newest state
+ * off the ring and puts the machine back in it.
+ * Nothing is allocated once the buffer is constructed.
+ * </pre>
+ */
+public final class RewindBuffer {
+
+    private static final int RAM_START = 0x4000;
+    private static final int RAM_SIZE = 0xc000;
+
+    private static final byte KEYFRAME = 1;
+    private static final byte DELTA = 2;
+
+    private static final int HEADER = 1 + 4 + 1 + 4 * CpuState.size();
+
+    // the index bytes of one state, its start and its keyframe's start
+    private static final int INDEX_ENTRY = 2 * Long.BYTES;
+
+    private final byte[] ring;
+    private final int capacity;
+    private long head = 0;      // the total number of bytes ever written, the next one goes at head % capacity
+
+    // the states in the ring, oldest first, as a circular index
+    private final long[] stateStart;
+    private final long[] stateKeyStart;   // the keyframe a state is relative to
+    private int firstState = 0;
+    private int stateCount = 0;
+
+    private final int framesPerState;
+    private final int keyframeInterval;
+    private int frames = 0;
+    private int sinceKeyframe = 0;
+    private boolean keyframeValid = false;  // false once the last keyframe was dropped or rewound
+
+    // the RAM of the last keyframe, and the scratch buffers of the encoding
+    private final byte[] keyframe = new byte[RAM_SIZE];
+    private final byte[] ram = new byte[RAM_SIZE];
+    private final byte[] encoded = new byte[RAM_SIZE];
+    private final byte[] header = new byte[HEADER];
+    private final int[] cpuData = new int[CpuState.size()];
+    private final CpuState cpuState = new CpuState();
+    private int position;   // the decoding position in the encoded buffer
+
+
+
+    /**
+     * Construct the buffer.
+     *
+     * @param budget the size of the ring and of its index, in bytes
+     * @param framesPerState the number of frames between two captured states
+     * @param keyframeInterval the number of states between two keyframes
+     */
+    public RewindBuffer(int budget, int framesPerState, int keyframeInterval) {
+        // a delta takes at least its header and a couple of counts, and its index entry.
+        // the index has room for as many of those as fit in the budget, the ring gets the rest
+        int states = budget / (HEADER + 2 + INDEX_ENTRY);
+        this.capacity = budget - states * INDEX_ENTRY;
+        if (capacity < 2 * (HEADER + RAM_SIZE)) { throw new IllegalArgumentException("Rewind budget too small: " + budget); }
+
+        this.framesPerState = Math.max(1, framesPerState);
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+
+        ring = new byte[capacity];
+        stateStart = new long[states];
+        stateKeyStart = new long[states];
+    }
+
+
+
+    /**
+     * Called once every frame, after its interrupt. Captures the state of
+     * the machine every {@code framesPerState} frames.
+     *
+     * @param machine the machine
+     * @param tStates the T-states of the frame run, past its end
+     */
+    public void frameDone(Machine machine, int tStates) {
+        if (++frames < framesPerState) { return; }
+        frames = 0;
+
+        byte[] memory = machine.getBus().getMemory();
+        System.arraycopy(memory, RAM_START, ram, 0, RAM_SIZE);
+
+        int length = -1;
+        if (keyframeValid && sinceKeyframe < keyframeInterval) { length = encodeDelta(); }
+        makeRoom(HEADER + (length < 0 ? RAM_SIZE : length));
+        if (length >= 0 && !keyframeValid) {
+            // making room dropped the keyframe the delta is relative to
+            length = -1;
+            makeRoom(HEADER + RAM_SIZE);
+        }
+        boolean isKeyframe = length < 0;
+
+        machine.getCpu().syncFlags();
+        machine.getCpu().capture(cpuState);
+        writeHeader(isKeyframe ? KEYFRAME : DELTA, tStates, machine.getBus().getBorderColor());
+
+        long start = head;
+        write(header, HEADER);
+        if (isKeyframe) {
+            write(ram, RAM_SIZE);
+            System.arraycopy(ram, 0, keyframe, 0, RAM_SIZE);
+            keyframeValid = true;
+            sinceKeyframe = 0;
+        } else {
+            write(encoded, length);
+        }
+        sinceKeyframe++;
+
+        int index = (firstState + stateCount) % stateStart.length;
+        stateStart[index] = start;
+        stateKeyStart[index] = isKeyframe ? start : stateKeyStart[(index + stateStart.length - 1) % stateStart.length];
+        stateCount++;
+    }
+
+
+
+    /**
+     * Put the machine back in the newest captured state, and drop the state.
+     *
+     * @param machine the machine
+     * @return the T-states of the frame run when the state was captured,
+     * or -1 if there is no state left
+     */
+    public int rewind(Machine machine) {
+        if (stateCount == 0) { return -1; }
+
+        int index = (firstState + stateCount - 1) % stateStart.length;
+        long start = stateStart[index];
+        long keyStart = stateKeyStart[index];
+
+        read(start, header, HEADER);
+        read(keyStart + HEADER, ram, RAM_SIZE);
+        if (header[0] == DELTA) {
+            int length = (int) (head - start) - HEADER;
+            read(start + HEADER, encoded, length);
+            applyDelta(length);
+        }
+
+        int offset = 1;
+        int tStates = readInt(offset);
+        offset += 4;
+        int border = header[offset++];
+        for (int i = 0; i < cpuData.length; i++, offset += 4) { cpuData[i] = readInt(offset); }
+        cpuState.readFrom(CpuState.VERSION, cpuData, 0);
+
+        Memory memory = machine.getBus().getMemoryDevice();
+        memory.load(RAM_START, ram, 0, RAM_SIZE);
+        machine.getBus().setBorderColor(border);
+        machine.restoreCpu(cpuState);
+
+        head = start;
+        stateCount--;
+        // the next state is captured as a keyframe, the last one may be gone
+        keyframeValid = false;
+        frames = 0;
+        return tStates;
+    }
+
+
+
+    /** Drop all the captured states. */
+    public void clear() {
+        head = 0;
+        firstState = 0;
+        stateCount = 0;
+        frames = 0;
+        keyframeValid = false;
+    }
+
+
+
+    /** @return the number of captured states */
+    public int size() { return stateCount; }
+
+
+
+    /** @return the number of bytes the captured states take */
+    public long getBytesUsed() {
+        return stateCount == 0 ? 0 : head - stateStart[firstState];
+    }
+
+
+
+    /**
+     * Encode how the RAM differs from the keyframe into the encoded buffer.
+     *
+     * @return the length of the encoded delta, or -1 if it would be
+     * no smaller than a keyframe
+     */
+    private int encodeDelta() {
+        for (int i = 0; i < RAM_SIZE; i++) { ram[i] ^= keyframe[i]; }
+
+        int length = 0;
+        int limit = RAM_SIZE - 10;
+        int i = 0;
+        try {
+            while (i < RAM_SIZE) {
+                int literal = i;
+                while (literal < RAM_SIZE && ram[literal] == 0) { literal++; }
+
+                // the literal bytes run up to the next run of at least three zeros
+                int end = literal;
+                while (end < RAM_SIZE && !(end + 2 < RAM_SIZE && ram[end] == 0 && ram[end + 1] == 0 && ram[end + 2] == 0)) {
+                    end++;
+                }
+                if (length + (end - literal) > limit) { return -1; }
+
+                length = putVarint(length, literal - i);
+                length = putVarint(length, end - literal);
+                System.arraycopy(ram, literal, encoded, length, end - literal);
+                length += end - literal;
+                i = end;
+            }
+            return length;
+        } finally {
+            for (int j = 0; j < RAM_SIZE; j++) { ram[j] ^= keyframe[j]; }
+        }
+    }
+
+
+
+    /**
+     * XOR the encoded delta into the RAM, which holds the keyframe.
+     */
+    private void applyDelta(int length) {
+        int address = 0;
+        position = 0;
+        while (position < length) {
+            address += getVarint();
+            int literals = getVarint();
+            for (int end = address + literals; address < end; address++) {
+                ram[address] ^= encoded[position++];
+            }
+        }
+    }
+
+
+
+    private int putVarint(int offset, int value) {
+        while (value >= 0x80) {
+            encoded[offset++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        encoded[offset++] = (byte) value;
+        return offset;
+    }
+
+
+
+    private int getVarint() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = encoded[position++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) { return value; }
+        }
+    }
+
+
+
+    /**
+     * Drop the oldest states until there is room for a new one,
+     * each keyframe along with the deltas relative to it.
+     */
+    private void makeRoom(int size) {
+        while (stateCount > 0 && (head + size - stateStart[firstState] > capacity || stateCount == stateStart.length)) {
+            long droppedKey = stateKeyStart[firstState];
+            do {
+                firstState = (firstState + 1) % stateStart.length;
+                stateCount--;
+            } while (stateCount > 0 && stateKeyStart[firstState] == droppedKey);
+
+            if (stateCount == 0) { keyframeValid = false; }
+        }
+    }
+
+
+
+    private void writeHeader(byte type, int tStates, int border) {
+        cpuState.writeTo(cpuData, 0);
+
+        header[0] = type;
+        int offset = 1;
+        writeInt(offset, tStates);
+        offset += 4;
+        header[offset++] = (byte) border;
+        for (int value : cpuData) {
+            writeInt(offset, value);
+            offset += 4;
+        }
+    }
+
+
+
+    private void writeInt(int offset, int value) {
+        header[offset] = (byte) value;
+        header[offset + 1] = (byte) (value >>> 8);
+        header[offset + 2] = (byte) (value >>> 16);
+        header[offset + 3] = (byte) (value >>> 24);
+    }
+
+
+
+    private int readInt(int offset) {
+        return (header[offset] & 0xff) | (header[offset + 1] & 0xff) << 8
+                | (header[offset + 2] & 0xff) << 16 | header[offset + 3] << 24;
+    }
+
+
+
+    /**
+     * Append bytes to the ring, wrapping around its end.
+     */
+    private void write(byte[] data, int length) {
+        int at = (int) (head % capacity);
+        int first = Math.min(length, capacity - at);
+        System.arraycopy(data, 0, ring, at, first);
+        System.arraycopy(data, first, ring, 0, length - first);
+        head += length;
+    }
+
+
+
+    private void read(long from, byte[] data, int length) {
+        int at = (int) (from % capacity);
+        int first = Math.min(length, capacity - at);
+        System.arraycopy(ring, at, data, 0, first);
+        System.arraycopy(ring, 0, data, first, length - first);
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.bench;
+
+import sample.Machine;
+import sample.cpu.CpuState;
+import sample.cpu.Fusion;
+import sample.cpu.Z80;
+import sample.debug.DebuggerConfig;
+import sample.utils.FileUtils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+
+/**
+ * Throughput benchmarks of the Z80 interpreter, run from the CLI.
+ *
+ * <pre>
+ * Every benchmark loads a small program at 0x8000 of a fresh machine and runs
+ * it for a fixed number of emulated seconds, after a warm-up of the same length.
+ * The result is the emulated clock rate, in MHz, the host sustains.
+ *
+ * .------------------------------------------------------------------.
+ * | benchmark   | what runs                                          |
+ * |------------------------------------------------------------------|
+ * | alu         | 8-bit arithmetic and logic on registers            |
+ * | memory      | a byte copy loop through (HL) and (DE), with DJNZ  |
+ * | indexed     | loads, ALU and INC through (IX+d) and (IY+d)       |
+ * | bits        | CB and DDCB/FDCB bit, rotate, set and reset        |
+ * | block       | 4K LDIR                                            |
+ * | interrupts  | HALT woken by an IM 2 interrupt every 1000 cycles  |
+ * | rom         | the 48K ROM from -Drom=file, booting and idling    |
+ * `------------------------------------------------------------------'
+ *
+ * Each benchmark runs twice: with the plain interpreter, and with the block
+ * cache, fusion, bulk block instructions and idle loop skipping.
+ * The results are printed as a JSON array, so that the emulated MHz can be
+ * tracked per host across releases:
+ *
+ *  java -cp classes -Drom=48.rom sample.bench.Z80Benchmark [seconds] > results.json
+ * </pre>
+ */
+public final class Z80Benchmark {
+
+    private static final int CLOCK_HZ = 3_500_000;
+    private static final int CODE = 0x8000;
+    private static final int CHUNK = 10_000;    // cycles run between two checks of the clock
+
+    private static final int[] ALU = {
+            0x06, 0x11, 0x0E, 0x22, 0x16, 0x33, 0x1E, 0x44,    // LD B,n .. LD E,n
+            0x80, 0x91, 0xA2, 0xB3, 0xAC, 0xBD, 0x3C, 0x05,    // ADD A,B  SUB C  AND D  OR E  XOR H  CP L  INC A  DEC B
+            0x88, 0x99, 0x2F, 0x27, 0x17, 0x0F,                // ADC A,B  SBC A,C  CPL  DAA  RLA  RRCA
+            0xC3, 0x08, 0x80                                    // JP 0x8008
+    };
+
+    private static final int[] MEMORY = {
+            0x21, 0x00, 0x90,       // LD HL,0x9000
+            0x11, 0x00, 0xA0,       // LD DE,0xA000
+            0x06, 0x00,             // LD B,0
+            0x7E, 0x23, 0x12, 0x13, // LD A,(HL)  INC HL  LD (DE),A  INC DE
+            0x10, 0xFA,             // DJNZ -6
+            0xC3, 0x00, 0x80        // JP 0x8000
+    };
+
+    private static final int[] INDEXED = {
+            0xDD, 0x21, 0x00, 0x90,             // LD IX,0x9000
+            0xFD, 0x21, 0x00, 0xA0,             // LD IY,0xA000
+            0xDD, 0x7E, 0x01,                   // LD A,(IX+1)
+            0xFD, 0x86, 0x02,                   // ADD A,(IY+2)
+            0xDD, 0x77, 0x03,                   // LD (IX+3),A
+            0xFD, 0x34, 0x04,                   // INC (IY+4)
+            0xDD, 0xBE, 0x05,                   // CP (IX+5)
+            0xC3, 0x08, 0x80                    // JP 0x8008
+    };
+
+    private static final int[] BITS = {
+            0xDD, 0x21, 0x00, 0x90,             // LD IX,0x9000
+            0xFD, 0x21, 0x00, 0xA0,             // LD IY,0xA000
+            0xCB, 0x47, 0xCB, 0xC8, 0xCB, 0x91, // BIT 0,A  SET 1,B  RES 2,C
+            0xCB, 0x02, 0xCB, 0x3B,             // RLC D  SRL E
+            0xDD, 0xCB, 0x01, 0x5E,             // BIT 3,(IX+1)
+            0xFD, 0xCB, 0x02, 0xE6,             // SET 4,(IY+2)
+            0xDD, 0xCB, 0x03, 0xAE,             // RES 5,(IX+3)
+            0xFD, 0xCB, 0x04, 0x16,             // RL (IY+4)
+            0xC3, 0x08, 0x80                    // JP 0x8008
+    };
+
+    private static final int[] BLOCK = {
+            0x21, 0x00, 0x90,       // LD HL,0x9000
+            0x11, 0x00, 0xA0,       // LD DE,0xA000
+            0x01, 0x00, 0x10,       // LD BC,0x1000
+            0xED, 0xB0,             // LDIR
+            0xC3, 0x00, 0x80        // JP 0x8000
+    };
+
+    private static final int[] INTERRUPTS = {
+            0xF3,                   // DI
+            0x3E, 0x90,             // LD A,0x90
+            0xED, 0x47,             // LD I,A
+            0xED, 0x5E,             // IM 2
+            0xFB,                   // EI
+            0x76,                   // HALT
+            0x18, 0xFD              // JR -3
+    };
+
+    // the IM 2 handler, at 0x8282 since the vector table is filled with 0x82
+    private static final int[] HANDLER = {
+            0xFB,                   // EI
+            0xED, 0x4D              // RETI
+    };
+
+
+
+    private Z80Benchmark() { }
+
+
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 5;
+        long cycles = (long) (seconds * CLOCK_HZ);
+
+        List<String> results = new ArrayList<>();
+        for (boolean tiers : new boolean[] { false, true }) {
+            results.add(run("alu", ALU, tiers, cycles));
+            results.add(run("memory", MEMORY, tiers, cycles));
+            results.add(run("indexed", INDEXED, tiers, cycles));
+            results.add(run("bits", BITS, tiers, cycles));
+            results.add(run("block", BLOCK, tiers, cycles));
+            results.add(runInterrupts(tiers, cycles));
+
+            String rom = System.getProperty("rom");
+            if (rom != null) { results.add(runRom(rom, tiers, cycles)); }
+        }
+
+        PrintStream out = System.out;
+        out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            out.println("  " + results.get(i) + (i < results.size() - 1 ? "," : ""));
+        }
+        out.println("]");
+    }
+
+
+
+    /**
+     * Run a program without interrupts.
+     */
+    private static String run(String name, int[] program, boolean tiers, long cycles) {
+        Machine machine = newMachine(tiers);
+        load(machine, CODE, program);
+        start(machine.getCpu(), CODE);
+
+        Z80 cpu = machine.getCpu();
+        measure(() -> cpu.runUntil(cpu.getCycleCount() + CHUNK), cpu, cycles);
+        return measure(() -> cpu.runUntil(cpu.getCycleCount() + CHUNK), cpu, cycles).toJson(name, tiers);
+    }
+
+
+
+    /**
+     * Run a HALT loop, interrupted every 1000 cycles.
+     */
+    private static String runInterrupts(boolean tiers, long cycles) {
+        Machine machine = newMachine(tiers);
+        load(machine, CODE, INTERRUPTS);
+        load(machine, 0x8282, HANDLER);
+        for (int address = 0x9000; address <= 0x9100; address++) {
+            machine.getBus().writeByteUnrestricted(address, 0x82);
+        }
+        start(machine.getCpu(), CODE);
+
+        Z80 cpu = machine.getCpu();
+        Runnable interrupted = () -> {
+            for (int i = 0; i < CHUNK / 1000; i++) {
+                cpu.runUntil(cpu.getCycleCount() + 1000);
+                cpu.interrupt();
+            }
+        };
+        measure(interrupted, cpu, cycles);
+        return measure(interrupted, cpu, cycles).toJson("interrupts", tiers);
+    }
+
+
+
+    /**
+     * Boot the 48K ROM, frame after frame.
+     */
+    private static String runRom(String rom, boolean tiers, long cycles) {
+        Machine machine = newMachine(tiers);
+        machine.loadRom(FileUtils.loadFile(rom));
+
+        Z80 cpu = machine.getCpu();
+        measure(machine::runFrame, cpu, cycles);
+        return measure(machine::runFrame, cpu, cycles).toJson("rom", tiers);
+    }
+
+
+
+    private static Machine newMachine(boolean tiers) {
+        Machine machine = new Machine(new DebuggerConfig(false, false, false));
+        Z80 cpu = machine.getCpu();
+
+        cpu.setBlockCaching(tiers);
+        cpu.setFusion(tiers ? Fusion.withDefaults() : null);
+        cpu.setBulkBlockInstructions(tiers);
+        cpu.setIdleLoopSkipping(tiers);
+        cpu.setLazyFlags(tiers);
+        cpu.setHaltSkipping(tiers);
+        return machine;
+    }
+
+
+
+    private static void load(Machine machine, int address, int[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            machine.getBus().writeByteUnrestricted(address + i, bytes[i]);
+        }
+        machine.getCpu().invalidateBlocks();
+    }
+
+
+
+    private static void start(Z80 cpu, int pc) {
+        CpuState state = new CpuState();
+        cpu.capture(state);
+        state.setPC(pc);
+        state.setSP(0xFFF0);
+        cpu.restore(state);
+    }
+
+
+
+    /**
+     * Keep running chunks until the emulated cycles are done.
+     */
+    private static Result measure(Runnable chunk, Z80 cpu, long cycles) {
+        long startCycles = cpu.getCycleCount();
+        long startInstructions = cpu.getInstructionCount();
+        long start = System.nanoTime();
+
+        while (cpu.getCycleCount() - startCycles < cycles) { chunk.run(); }
+
+        long nanos = System.nanoTime() - start;
+        return new Result(cpu.getCycleCount() - startCycles,
+                          cpu.getInstructionCount() - startInstructions,
+                          nanos);
+    }
+
+
+
+    private static final class Result {
+        final long cycles;
+        final long instructions;
+        final long nanos;
+
+        Result(long cycles, long instructions, long nanos) {
+            this.cycles = cycles;
+            this.instructions = instructions;
+            this.nanos = nanos;
+        }
+
+        String toJson(String name, boolean tiers) {
+            double seconds = nanos / 1e9;
+            return String.format(Locale.ROOT,
+                    "{\"benchmark\": \"%s\", \"tiers\": %b, \"mhz\": %.3f, \"cycles\": %d, "
+                            + "\"instructions\": %d, \"seconds\": %.3f}",
+                    name, tiers, cycles / seconds / 1e6, cycles, instructions, seconds);
+        }
+    }
+}
@@ -41,9 +41,9 @@ public interface Bus {
     int ioReadByte(int address);
     void ioWriteByte(int address, int data);
 
-    int[] getMemory();
+    byte[] getMemory();
     Memory getMemoryDevice();
-    int[] getIO();
+    byte[] getIO();
 
     Object getIrqDeviceProvidedData();
     void setIrqDeviceProvidedData(Object data);
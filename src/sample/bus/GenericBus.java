@@ -29,6 +29,7 @@ package sample.bus;
 
 import sample.device.I0;
 import sample.device.Memory;
+import sample.device.PortMap;
 
 
 
@@ -41,22 +42,39 @@ public class GenericBus implements Bus {
 
     private final I0 io;            // used for I/O read/write
     private final Memory memory;    // used for RAM read/write
+    private final PortMap ports = new PortMap();    // the peripherals by port, the IO device by default
 
     public GenericBus() {
         io = new I0();
         memory = new Memory();
+        ports.attach(io);
+    }
+
+
+
+    /**
+     * Construct a bus on the given devices, for example
+     * on the memory forked from another bus.
+     *
+     * @param io the IO device
+     * @param memory the memory device
+     */
+    protected GenericBus(I0 io, Memory memory) {
+        this.io = io;
+        this.memory = memory;
+        ports.attach(io);
     }
 
 
 
     /**
      * Provide direct access
-     * to the underlying memory array.
+     * to the underlying memory array, packed as bytes.
      *
      * @return an array representing the memory
      */
     @Override
-    public int[] getMemory() {
+    public byte[] getMemory() {
         return memory.getMemory();
     }
 
@@ -64,17 +82,39 @@ public class GenericBus implements Bus {
 
     /**
      * Provide direct access
-     * to the underlying IO registers array.
+     * to the underlying IO registers array, packed as bytes.
      *
      * @return an array representing the IO registers
      */
     @Override
-    public int[] getIO() {
+    public byte[] getIO() {
         return io.getIO();
     }
 
 
 
+    /**
+     * Provide direct access to the IO device.
+     *
+     * @return the IO device
+     */
+    protected I0 getIODevice() {
+        return io;
+    }
+
+
+
+    /**
+     * Provide direct access to the peripherals attached to the ports.
+     *
+     * @return the port map
+     */
+    public PortMap getPorts() {
+        return ports;
+    }
+
+
+
     /**
      * Provide direct access to the memory device.
      *
@@ -140,21 +180,23 @@ public class GenericBus implements Bus {
 
 
     /**
-     * Read one byte from the specified IO address.
+     * Read one byte from the specified IO address,
+     * from the peripheral decoding it.
      */
     @Override
     public int ioReadByte(int address) {
-        return io.readByte(address);
+        return ports.readByte(address);
     }
 
 
 
     /**
-     * Write one byte to the specified IO address.
+     * Write one byte to the specified IO address,
+     * to the peripheral decoding it.
      */
     @Override
     public void ioWriteByte(int address, int data) {
-        io.writeByte(address, data);
+        ports.writeByte(address, data);
     }
 
 
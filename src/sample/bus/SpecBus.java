@@ -28,8 +28,15 @@ package sample.bus;
 
 
 
+import sample.device.KempstonJoystick;
+import sample.device.KempstonMouse;
+import sample.device.Memory;
+import sample.device.Peripheral;
+import sample.device.PortMap;
+
 import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
 
 
 
@@ -41,11 +48,14 @@ import java.util.concurrent.ThreadLocalRandom;
  * Because of the way the ZX Spectrum 48k bus is organized,
  * some magic happens between bit 4 OUT and bit 6 IN on port 0xFE.
  * On an Issue 3, an OUT 0xFE with bit 4 reset will give a reset bit 6 for IN 0xFE.
- * See the table from {@link #ioWriteByte(int, int)}.
+ * See the tables of the ULA's port reads and writes, in {@code Ula}.
  *
  * Any even port will access the ULA, but traditionally one port is used: 0xFE.
  * More details can be found here: http://rk.nvg.ntnu.no/sinclair/faq/tech_48.html
  *
+ * The ports are decoded through the port map of the bus, see {@link PortMap},
+ * with the ULA and the Kempston joystick and mouse attached.
+ *
  * IN from port xxFE will read the keyboard state and tape input.
  * OUT to the same port will set the border colour to (b2, b1, b0), drive the MIC socket
  * with b3 and the loudspeaker with b4. b5-b7 are not used.
@@ -57,11 +67,10 @@ public final class SpecBus extends GenericBus {
     // used for keyboard input/output operations
     private final int[] keyboardIO = new int[256];
 
-    // used for kempston joystick input/output operations
-    private final int[] kempstonJoystickIO = new int[1];
-
-    // used for kempston mouse input/output operations
-    private final int[] kempstonMouseIO = new int[3];
+    // the peripherals on the ports: the ULA on the even ports, and the kempston interfaces
+    private final Ula ula = new Ula();
+    private final KempstonJoystick kempstonJoystick = new KempstonJoystick();
+    private final KempstonMouse kempstonMouse = new KempstonMouse();
 
     // keep track of the EAR input bit 6.
     // apparently, when the line is silent, its value is zero.
@@ -73,6 +82,17 @@ public final class SpecBus extends GenericBus {
     // assume default value is 0.
     private int bit4EAROut = 0x00;
 
+    // when the cpu runs whole instructions at a time, the EAR output is not
+    // sampled every cycle. instead, the cycle counts of the OUTs changing it
+    // are recorded, and turned into audio samples once per frame. the changes
+    // older than a frame are dropped when the array is full, in case nobody takes
+    // the samples, so it only grows with the edges of a frame.
+    private static final int EAR_HISTORY_CYCLES = 69_888;
+    private LongSupplier cycleSource = () -> 0;
+    private long[] earEdges = new long[1024];
+    private int earEdgeCount = 0;
+    private int earLevel = 0;                   // the EAR output before the first edge
+
     // keep track of the set border color
     private int borderColor = 0x07;
 
@@ -87,7 +107,66 @@ public final class SpecBus extends GenericBus {
 
 
 
-    public SpecBus() { Arrays.fill(keyboardIO, 0x1f); } // we only care about the low 5 bits
+    public SpecBus() {
+        Arrays.fill(keyboardIO, 0x1f);  // we only care about the low 5 bits
+
+        // do not poke the ROM, and follow the writes to the screen bitmap.
+        // everything else is plain RAM, reached without any range checks.
+        Memory memory = getMemoryDevice();
+        memory.setWritePolicy(0x0000, 0x4000, Memory.READ_ONLY, null);
+        memory.setWritePolicy(0x4000, 0x1800, Memory.HOOKED, this::screenWritten);
+
+        attachPeripherals();
+    }
+
+
+
+    private SpecBus(SpecBus parent) {
+        // the ports are all handled here, the IO registers are never written
+        super(parent.getIODevice(), parent.getMemoryDevice().fork());
+        getMemoryDevice().setWritePolicy(0x4000, 0x1800, Memory.HOOKED, this::screenWritten);
+        attachPeripherals();
+
+        System.arraycopy(parent.keyboardIO, 0, keyboardIO, 0, keyboardIO.length);
+        kempstonJoystick.setState(parent.kempstonJoystick.getState());
+        for (int type = KempstonMouse.X; type <= KempstonMouse.BUTTONS; type++) {
+            kempstonMouse.setData(type, parent.kempstonMouse.getData(type));
+        }
+        bit6EARIn = parent.bit6EARIn;
+        bit4EAROut = parent.bit4EAROut;
+        earEdges = parent.earEdges.clone();
+        earEdgeCount = parent.earEdgeCount;
+        earLevel = parent.earLevel;
+        borderColor = parent.borderColor;
+        System.arraycopy(parent.linearPixelBytes, 0, linearPixelBytes, 0, linearPixelBytes.length);
+    }
+
+
+
+    /**
+     * Replace the IO device, which decodes every port, with the peripherals
+     * of the machine. The ports none of them decodes read 0xFF, see {@link PortMap}.
+     */
+    private void attachPeripherals() {
+        PortMap ports = getPorts();
+        ports.detach(getIODevice());
+        ports.attach(ula);
+        ports.attach(kempstonJoystick);
+        ports.attach(kempstonMouse);
+    }
+
+
+
+    /**
+     * Fork the bus: the fork starts with the same memory, ports and screen,
+     * and goes its own way from then on. The memory is shared until written,
+     * see {@link Memory#fork()}. The cycle source is not carried over.
+     *
+     * @return the fork
+     */
+    public SpecBus fork() {
+        return new SpecBus(this);
+    }
 
 
 
@@ -129,7 +208,7 @@ public final class SpecBus extends GenericBus {
      * @return the kempston joystick data
      */
     public int ioKempstonJoystickReadByte() {
-        return kempstonJoystickIO[0];
+        return kempstonJoystick.getState();
     }
 
 
@@ -142,7 +221,7 @@ public final class SpecBus extends GenericBus {
      * @param data the kempston joystick data
      */
     public void ioKempstonJoystickWriteByte(int data) {
-        kempstonJoystickIO[0] = data & 0x1f;
+        kempstonJoystick.setState(data);
     }
 
 
@@ -161,7 +240,7 @@ public final class SpecBus extends GenericBus {
      * @return the kempston mouse data for the specified type
      */
     public int ioKempstonMouseReadByte(int type) {
-        return kempstonMouseIO[type];
+        return kempstonMouse.getData(type);
     }
 
 
@@ -181,7 +260,7 @@ public final class SpecBus extends GenericBus {
      * @param data the kempston mouse data for the specified type
      */
     public void ioKempstonMouseWriteByte(int type, int data) {
-        kempstonMouseIO[type] = data & 0xff;
+        kempstonMouse.setData(type, data);
     }
 
 
@@ -195,95 +274,192 @@ public final class SpecBus extends GenericBus {
      * @param data the byte to be written to the specified address
      */
     public void writeByteUnrestricted(int address, int data) {
-        super.writeByte(address, data);
+        getMemoryDevice().poke(address, data);
     }
 
 
 
     /**
-     * Write one byte to the specified memory address.
-     * If the memory address happens to be in the screen
-     * memory area, compute the linear address of the current pixel
-     * byte and in addition to the main memory, also store the data
+     * Called by the memory for every byte written to the screen bitmap,
+     * which the memory map hooks. Compute the linear address of the pixel
+     * byte and, in addition to the main memory, also store the data
      * to the newly computed linear address.
      *
-     * @param address the memory address
-     * @param data the byte to be written to the specified address
+     * @param address the memory address, in the screen bitmap
+     * @param data the byte written
      */
-    @Override
-    public void writeByte(int address, int data) {
-        if (address < 0x4000) { return; }   // do not poke the ROM
-        if (address < 0x5800) {     // screen bitmap address range
-            /*
-             * compute on the fly the 'linear address' for the current pixel byte.
-             * that is, rearrange the pixel bytes from the spectrum format into a
-             * linear fashion just like the attribute bytes are arranged.
-             *
-             * addr = 010_tt_ppp_rrr_ccccc
-             * t    = one of the thirds of the screen (0..2)
-             * p    = pixel line number inside character row (0..7)
-             * r    = character row within one of the thirds of the screen (0..7)
-             * c    = the character column number (0..31)
-             *
-             * linear address = ((t * 64) + (r * 8) + p) * 32 + c
-             */
-
-            // not included with sample
-        }
-        super.writeByte(address, data);
+    private void screenWritten(int address, int data) {
+        /*
+         * compute on the fly the 'linear address' for the current pixel byte.
+         * that is, rearrange the pixel bytes from the spectrum format into a
+         * linear fashion just like the attribute bytes are arranged.
+         *
+         * addr = 010_tt_ppp_rrr_ccccc
+         * t    = one of the thirds of the screen (0..2)
+         * p    = pixel line number inside character row (0..7)
+         * r    = character row within one of the thirds of the screen (0..7)
+         * c    = the character column number (0..31)
+         *
+         * linear address = ((t * 64) + (r * 8) + p) * 32 + c
+         */
+        int t = (address >> 11) & 0x03;
+        int p = (address >> 8) & 0x07;
+        int r = (address >> 5) & 0x07;
+        int c = address & 0x1f;
+
+        linearPixelBytes[((t * 64) + (r * 8) + p) * 32 + c] = data;
     }
 
 
 
     /**
-     * Port 0xFE (254), IN
-     *
-     * Bits 5 and 7 are not used when doing an IN.
-     *
-     * "bit 6 of IN-port FE is the EAR input bit. when the line is silent,
-     * its value is zero, except in the early Model 2 of the Spectrum, where it was one.
-     * when there is a signal, this bit toggles. bits 5 and 7 are always one."
-     *
-     * .-------------------------------------------------------.
-     * | BIT   |  7  |  6  |  5  |  4  |  3  |  2  |  1  |  0  |
-     * |-------------------------------------------------------|
-     * |       |  -  | EAR |  -  |            KEYS             |
-     * `-------------------------------------------------------'
+     * The ULA, on all the even ports. Traditionally port 0xFE (254) is used.
      */
-    @Override
-    public int ioReadByte(int address) {
-        int data = 0xff;
+    private final class Ula implements Peripheral {
+
+        @Override
+        public int getPortMask() { return 0x0001; }
+
+
+
+        @Override
+        public int getPortMatch() { return 0x0000; }
+
+
+
+        /**
+         * Port 0xFE (254), IN
+         *
+         * Bits 5 and 7 are not used when doing an IN.
+         *
+         * "bit 6 of IN-port FE is the EAR input bit. when the line is silent,
+         * its value is zero, except in the early Model 2 of the Spectrum, where it was one.
+         * when there is a signal, this bit toggles. bits 5 and 7 are always one."
+         *
+         * .-------------------------------------------------------.
+         * | BIT   |  7  |  6  |  5  |  4  |  3  |  2  |  1  |  0  |
+         * |-------------------------------------------------------|
+         * |       |  -  | EAR |  -  |            KEYS             |
+         * `-------------------------------------------------------'
+         */
+        @Override
+        public int readByte(int address) {
+            int data = 0xff;
 
-        if ((address & 0x1) == 0) { // all even ports would address the ULA.
             // not included with sample
+
+            return data;
+        }
+
+
+
+        /**
+         * Port 0xFE (254), OUT. Set border, EAR, MIC.
+         *
+         * <pre>
+         * Bits 5-7 are not used when OUT-ing.
+         * </pre>
+         */
+        @Override
+        public void writeByte(int address, int data) {
+            borderColor = data & 0x7;
+
+            int ear = (data >> 4) & 0x1;
+            if (ear != bit4EAROut) { addEAREdge(cycleSource.getAsLong()); }
+            bit4EAROut = ear;
         }
-        return data;
     }
 
 
 
+    public void setEARInBit(int value) { bit6EARIn = value; }
+
+
+
+    public int getEAROutBit() { return bit4EAROut; }
+
+
+
     /**
-     * Port 0xFE (254), OUT
+     * Set the source of the current cycle count, used to time the EAR output changes.
+     *
+     * @param cycleSource the cpu cycle count
+     */
+    public void setCycleSource(LongSupplier cycleSource) { this.cycleSource = cycleSource; }
+
+
+
+    /**
+     * Turn the EAR output changes into audio samples, consuming the changes
+     * up to the end of the last sample. Each sample is the EAR output
+     * averaged over its period, from the time it spent high.
      *
      * <pre>
-     * Bits 5-7 are not used when OUT-ing.
+     * The samples must follow each other from one call to the next:
+     * the first one starts where the previous call's last one ended.
+     * The changes past the last sample are kept for the next call.
      * </pre>
+     *
+     * @param from the cycle count the first sample starts at
+     * @param period the number of cycles per sample
+     * @param count the number of samples
+     * @param samples the array to put the samples into, the ones not fitting are dropped
      */
-    @Override
-    public void ioWriteByte(int address, int data) {
-        if ((address & 0x1) == 0) {  // target is ULA. set border, EAR, MIC.
-            borderColor = data & 0x7;
-            bit4EAROut = (data >> 4) & 0x1;
+    public void takeEARSamples(long from, int period, int count, byte[] samples) {
+        int level = earLevel;
+        int edge = 0;
+        long start = from;
+
+        for (int s = 0; s < count; s++) {
+            long end = start + period;
+            long high = 0;
+            long at = start;
+
+            while (edge < earEdgeCount && earEdges[edge] < end) {
+                long changed = Math.max(earEdges[edge++], at);
+                if (level != 0) { high += changed - at; }
+                level ^= 1;
+                at = changed;
+            }
+            if (level != 0) { high += end - at; }
+
+            if (s < samples.length) { samples[s] = (byte) Math.round((float) high / period); }
+            start = end;
         }
+
+        System.arraycopy(earEdges, edge, earEdges, 0, earEdgeCount - edge);
+        earEdgeCount -= edge;
+        earLevel = level;
     }
 
 
 
-    public void setEARInBit(int value) { bit6EARIn = value; }
+    private void addEAREdge(long cycle) {
+        if (earEdgeCount == earEdges.length) {
+            int old = 0;
+            while (old < earEdgeCount && earEdges[old] < cycle - EAR_HISTORY_CYCLES) { old++; }
 
+            if (old == 0) {
+                earEdges = Arrays.copyOf(earEdges, 2 * earEdges.length);
+            } else {
+                System.arraycopy(earEdges, old, earEdges, 0, earEdgeCount - old);
+                earEdgeCount -= old;
+                earLevel ^= old & 1;
+            }
+        }
+        earEdges[earEdgeCount++] = cycle;
+    }
 
 
-    public int getEAROutBit() { return bit4EAROut; }
+
+    /**
+     * Forget the EAR output changes not turned into samples yet,
+     * for example when the cpu was put back in an earlier state.
+     */
+    public void dropEARChanges() {
+        earEdgeCount = 0;
+        earLevel = bit4EAROut;
+    }
 
 
 
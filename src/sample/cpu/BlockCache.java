@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.cpu;
+
+import sample.device.Memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+
+/**
+ * Decode cache of basic blocks.
+ *
+ * <pre>
+ * A block is a straight run of already decoded instructions, recorded while
+ * the interpreter executes them: the address, dense key, handler and length
+ * of every instruction. Running a block skips the opcode fetches and the
+ * prefix decoding, but still dispatches every instruction to its handler
+ * one by one, except for the straight runs of register only instructions,
+ * which are compiled into JVM classes when a compiler is set, see
+ * {@link BlockCompiler}.
+ *
+ * Only hot code is cached. An execution counter is kept for every address
+ * reached by a jump, call, return or interrupt. Once the counter reaches
+ * {@link #HOT_THRESHOLD}, the next execution from that address is recorded,
+ * up to and including the first instruction listed in {@link InstructionSet#ENDS_BLOCK},
+ * or up to {@link #MAX_BLOCK_LENGTH} instructions.
+ *
+ * The memory pages holding translated code are watched for writes.
+ * Any write to such a page invalidates all the blocks covering it,
+ * so self-modifying code is simply recorded again once it gets hot.
+ * The handlers are recorded too, so the cache has to be cleared whenever
+ * an instruction handler gets replaced.
+ * </pre>
+ */
+final class BlockCache implements Memory.WriteWatcher {
+
+    static final int HOT_THRESHOLD = 16;
+    static final int MAX_BLOCK_LENGTH = 32;
+
+    // the longest instruction, used to bound the bytes covered by a block
+    private static final int MAX_INSTRUCTION_LENGTH = 4;
+
+
+
+    static final class Block {
+        final int start;
+        int count;
+
+        // for every instruction: its address, dense key, handler,
+        // and the number of prefix and opcode bytes fetched
+        final int[] pcs = new int[MAX_BLOCK_LENGTH];
+        final int[] keys = new int[MAX_BLOCK_LENGTH];
+        final InstructionSet.Instruction[] instrs = new InstructionSet.Instruction[MAX_BLOCK_LENGTH];
+        final int[] lengths = new int[MAX_BLOCK_LENGTH];
+
+        // cleared as soon as the code the block was recorded from is overwritten
+        boolean valid = true;
+
+        // the compiled segments by the index of their first instruction, null if none
+        BlockCompiler.Segment[] segments;
+
+        int firstPage;
+        int lastPage;
+
+        private Block(int start) { this.start = start; }
+    }
+
+
+
+    private final Memory memory;
+    private BlockCompiler compiler;     // null to only cache the decoding
+
+    private final byte[] heat = new byte[0xffff + 1];
+    private final Block[][] blocks = new Block[256][];
+
+    // the blocks covering each page
+    private final List<List<Block>> covering = new ArrayList<>(256);
+
+    private Block recording;        // the block being recorded, if any
+    private int expected = -1;      // the address following the last executed instruction
+    private boolean endsBlock;      // the last executed instruction ends a block
+
+    private long recorded;          // statistics
+    private long invalidated;
+
+
+
+    BlockCache(Memory memory) {
+        this.memory = memory;
+        for (int p = 0; p < 256; p++) {
+            covering.add(new ArrayList<>());
+        }
+        memory.setWriteWatcher(this);
+    }
+
+
+
+    /**
+     * Set the compiler of the blocks recorded from now on.
+     * The blocks already cached are dropped.
+     *
+     * @param compiler the compiler, or null to only cache the decoding
+     */
+    void setCompiler(BlockCompiler compiler) {
+        this.compiler = compiler;
+        clear();
+    }
+
+
+
+    /**
+     * Get the valid block starting at the specified address.
+     *
+     * @param pc the address
+     * @return the block, or null if no block starts at the address
+     */
+    Block lookup(int pc) {
+        Block[] page = blocks[pc >>> 8];
+        return page == null ? null : page[pc & 0xff];
+    }
+
+
+
+    /**
+     * Called by the interpreter after every instruction it executed.
+     * Counts the executions of jump targets and records blocks.
+     *
+     * @param pc the address of the executed instruction
+     * @param key the dense key of the executed instruction
+     * @param instr the executed instruction
+     * @param length the number of prefix and opcode bytes fetched
+     * @param next the program counter after the instruction
+     */
+    void executed(int pc, int key, InstructionSet.Instruction instr, int length, int next) {
+        // reached by a jump, or by an interrupt or a reset getting in the way
+        boolean entry = endsBlock || pc != expected;
+        endsBlock = InstructionSet.ENDS_BLOCK[key];
+        expected = next;
+
+        if (recording != null && entry) {
+            install(recording);
+            recording = null;
+        }
+
+        if (recording == null) {
+            if (!entry || lookup(pc) != null) { return; }
+            if (heat[pc] < HOT_THRESHOLD) { heat[pc]++; return; }
+            recording = new Block(pc);
+
+            // a block never spans more than two pages
+            memory.watchPage(pc >>> 8, true);
+            memory.watchPage((pc >>> 8) + 1, true);
+        }
+
+        Block block = recording;
+        int i = block.count++;
+        block.pcs[i] = pc;
+        block.keys[i] = key;
+        block.instrs[i] = instr;
+        block.lengths[i] = length;
+
+        if (endsBlock || block.count == MAX_BLOCK_LENGTH) {
+            install(block);
+            recording = null;
+        }
+    }
+
+
+
+    /**
+     * Called after instructions ran without going through {@link #executed},
+     * from a cached block or as a fused sequence. Ends the block being recorded,
+     * which cannot include them, and tells where the interpreter resumes,
+     * so that it is not taken for the target of a jump.
+     *
+     * @param next the program counter after the instructions
+     * @param endsBlock true if the last instruction may have jumped
+     */
+    void skipped(int next, boolean endsBlock) {
+        if (recording != null) {
+            install(recording);
+            recording = null;
+        }
+        expected = next;
+        this.endsBlock = endsBlock;
+    }
+
+
+
+    /**
+     * Make a recorded block available and start watching the pages it covers.
+     */
+    private void install(Block block) {
+        if (block.count < 2) { return; }   // nothing to gain
+        if (compiler != null) { block.segments = compiler.compile(block, memory); }
+
+        int last = block.pcs[block.count - 1] + MAX_INSTRUCTION_LENGTH - 1;
+        block.firstPage = block.start >>> 8;
+        block.lastPage = (last >>> 8) & 0xff;
+
+        Block[] page = blocks[block.firstPage];
+        if (page == null) { page = blocks[block.firstPage] = new Block[256]; }
+        page[block.start & 0xff] = block;
+
+        for (int p = block.firstPage; ; p = (p + 1) & 0xff) {
+            covering.get(p).add(block);
+            memory.watchPage(p, true);
+            if (p == block.lastPage) { break; }
+        }
+        recorded++;
+    }
+
+
+
+    /**
+     * Invalidate all the blocks covering a page that was just written to.
+     *
+     * @param page the page number
+     */
+    @Override
+    public void pageWritten(int page) {
+        if (recording != null && recordingCovers(page)) {
+            recording = null;   // the code being recorded may have changed
+        }
+
+        List<Block> list = covering.get(page);
+        while (!list.isEmpty()) {
+            invalidate(list.get(list.size() - 1));
+        }
+    }
+
+
+
+    private boolean recordingCovers(int page) {
+        int first = recording.start >>> 8;
+        return page == first || page == ((first + 1) & 0xff);
+    }
+
+
+
+    private void invalidate(Block block) {
+        block.valid = false;
+        blocks[block.firstPage][block.start & 0xff] = null;
+        heat[block.start] = 0;
+
+        for (int p = block.firstPage; ; p = (p + 1) & 0xff) {
+            List<Block> list = covering.get(p);
+            list.remove(block);
+            if (list.isEmpty() && !(recording != null && recordingCovers(p))) { memory.watchPage(p, false); }
+            if (p == block.lastPage) { break; }
+        }
+        invalidated++;
+    }
+
+
+
+    /**
+     * Drop all the cached blocks and the execution counters.
+     * Must be called after memory was modified behind the bus' back,
+     * for example through direct access to the memory array.
+     */
+    void clear() {
+        for (int p = 0; p < covering.size(); p++) {
+            pageWritten(p);
+        }
+        Arrays.fill(heat, (byte) 0);
+        recording = null;
+        expected = -1;
+    }
+
+
+
+    /**
+     * Stop watching the memory.
+     */
+    void detach() {
+        clear();
+        memory.setWriteWatcher(null);
+    }
+
+
+
+    @Override
+    public String toString() {
+        return "BlockCache {"
+                + "recorded=" + recorded
+                + ", invalidated=" + invalidated
+                + ", compiler=" + compiler
+                + '}';
+    }
+}
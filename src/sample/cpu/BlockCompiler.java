@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.cpu;
+
+import sample.device.Memory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+
+import static sample.cpu.Z80.REG_A;
+import static sample.cpu.Z80.REG_F;
+
+
+
+/**
+ * Compiles the straight runs of register only instructions of a cached block
+ * into JVM classes, one class per run.
+ *
+ * <pre>
+ * A run, or segment, is two or more consecutive instructions of the subset
+ * below. None of them touches memory, the ports, the stack or the interrupt
+ * state, and all of them have a fixed timing, so a whole segment runs as one
+ * call, with its T-states, length and refresh count known in advance.
+ *
+ * .---------------------------------------------------------.
+ * | instructions              | opcodes           | T-states |
+ * |---------------------------------------------------------|
+ * | LD r,r'                   | 40-7F, no (HL)    | 4        |
+ * | LD r,n                    | 06 0E .. 3E       | 7        |
+ * | SUB/SBC/AND/XOR/OR/CP r   | 90-BF, no (HL)    | 4        |
+ * | SUB/SBC/AND/XOR/OR/CP n   | D6 DE E6 EE F6 FE | 7        |
+ * `---------------------------------------------------------'
+ *
+ * The generated code works on the register array of the cpu and sets F
+ * eagerly, from the same tables as the interpreter: the lazy flags are
+ * settled before a segment runs. The undocumented X and Y flags are
+ * preserved, like everywhere else.
+ *
+ * The class file is written by hand, there are no branches so no stack
+ * map frames are needed, and loaded as a hidden class of this package.
+ * A segment's class is unloaded along with the block it belongs to.
+ * </pre>
+ */
+final class BlockCompiler {
+
+    /** The code of a compiled segment. */
+    interface Code {
+        void run(int[] regs);
+    }
+
+
+
+    /** A compiled segment, starting at the instruction it is indexed by. */
+    static final class Segment {
+        final Code code;
+        final int count;            // instructions
+        final int tStates;          // all of them
+        final int leadTStates;      // all but the last one
+        final int next;             // the address following the last instruction
+
+        private Segment(Code code, int count, int tStates, int leadTStates, int next) {
+            this.code = code;
+            this.count = count;
+            this.tStates = tStates;
+            this.leadTStates = leadTStates;
+            this.next = next;
+        }
+    }
+
+
+
+    private static final int MIN_SEGMENT_LENGTH = 2;
+
+    private static final int LOCAL_REGS = 1;
+    private static final int LOCAL_A = 2;
+    private static final int LOCAL_B = 3;
+    private static final int LOCAL_RESULT = 4;
+    private static final int LOCAL_CARRY = 5;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final String CLASS_NAME = "sample/cpu/BlockCompiler$Compiled";
+    private static final String CODE_NAME = "sample/cpu/BlockCompiler$Code";
+    private static final String TABLES_NAME = "sample/cpu/FlagTables";
+
+    // cleared if the classes cannot be loaded, the blocks are then only cached
+    private static volatile boolean available = true;
+
+    private long compiled;          // statistics
+    private long instructions;
+
+
+
+    /**
+     * Compile the segments of a block.
+     *
+     * @param block the recorded block
+     * @param memory the memory the block was recorded from, for the immediate operands
+     * @return the segments by the index of their first instruction, or null if there are none
+     */
+    BlockCompiler.Segment[] compile(BlockCache.Block block, Memory memory) {
+        if (!available) { return null; }
+
+        Segment[] segments = null;
+        int i = 0;
+        while (i < block.count) {
+            int end = i;
+            while (end < block.count && tStates(block.keys[end]) > 0) { end++; }
+
+            if (end - i >= MIN_SEGMENT_LENGTH) {
+                Segment segment = compile(block, i, end, memory);
+                if (segment == null) { return null; }
+                if (segments == null) { segments = new Segment[block.count]; }
+                segments[i] = segment;
+            }
+            i = Math.max(end, i + 1);
+        }
+        return segments;
+    }
+
+
+
+    /**
+     * @param key the dense key of an instruction
+     * @return its T-states if it can be compiled, 0 otherwise
+     */
+    static int tStates(int key) {
+        if (key >>> 8 != InstructionSet.BASE) { return 0; }
+        int op = key & 0xff;
+
+        if (op >= 0x40 && op < 0x80) {
+            return (op & 0x07) == 0x06 || (op & 0x38) == 0x30 ? 0 : 4;     // LD r,r'
+        }
+        if ((op & 0xc7) == 0x06) {
+            return (op & 0x38) == 0x30 ? 0 : 7;                           // LD r,n
+        }
+        if (op >= 0x90 && op < 0xc0) {
+            return (op & 0x07) == 0x06 ? 0 : 4;                           // ALU A,r but ADD and ADC
+        }
+        if ((op & 0xc7) == 0xc6 && op >= 0xd6) {
+            return 7;                                                     // ALU A,n but ADD and ADC
+        }
+        return 0;
+    }
+
+
+
+    private static boolean immediate(int op) {
+        return op < 0x40 || op >= 0xc0;
+    }
+
+
+
+    private Segment compile(BlockCache.Block block, int start, int end, Memory memory) {
+        Bytecode code = new Bytecode();
+        int tStates = 0;
+        int last = 0;
+
+        for (int i = start; i < end; i++) {
+            int op = block.keys[i] & 0xff;
+            int pc = block.pcs[i];
+            int n = immediate(op) ? memory.readByte((pc + 1) & 0xffff) : 0;
+
+            if (op >= 0x40 && op < 0x80) {
+                code.loadRegister((op >>> 3) & 0x07, op & 0x07);
+            } else if (op < 0x40) {
+                code.loadImmediate((op >>> 3) & 0x07, n);
+            } else {
+                code.alu((op >>> 3) & 0x07, op & 0x07, immediate(op), n);
+            }
+
+            last = tStates(block.keys[i]);
+            tStates += last;
+        }
+
+        int lastOp = block.keys[end - 1] & 0xff;
+        int next = (block.pcs[end - 1] + (immediate(lastOp) ? 2 : 1)) & 0xffff;
+
+        Code instance = load(code.classFile());
+        if (instance == null) { return null; }
+
+        compiled++;
+        instructions += end - start;
+        return new Segment(instance, end - start, tStates, tStates - last, next);
+    }
+
+
+
+    private static Code load(byte[] classFile) {
+        try {
+            Class<?> type = LOOKUP.defineHiddenClass(classFile, true).lookupClass();
+            return (Code) type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+            System.out.println("Unable to compile the cached blocks, they are interpreted: " + e);
+            available = false;
+            return null;
+        }
+    }
+
+
+
+    @Override
+    public String toString() {
+        return "BlockCompiler {"
+                + "compiled=" + compiled
+                + ", instructions=" + instructions
+                + '}';
+    }
+
+
+
+    /**
+     * The method body of a segment, and the class file around it.
+     */
+    private static final class Bytecode {
+
+        private static final int ILOAD = 0x15;
+        private static final int ISTORE = 0x36;
+        private static final int ALOAD_0 = 0x2a;
+        private static final int ALOAD_1 = 0x2b;
+        private static final int IALOAD = 0x2e;
+        private static final int BALOAD = 0x33;
+        private static final int IASTORE = 0x4f;
+        private static final int ISUB = 0x64;
+        private static final int ISHL = 0x78;
+        private static final int IAND = 0x7e;
+        private static final int IOR = 0x80;
+        private static final int IXOR = 0x82;
+        private static final int RETURN = 0xb1;
+        private static final int GETSTATIC = 0xb2;
+        private static final int INVOKESPECIAL = 0xb7;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int ICONST_0 = 0x03;
+
+        private static final int MAX_STACK = 8;
+        private static final int MAX_LOCALS = 6;
+
+        // .----------------------------------------.
+        // | ALU | 2   | 3   | 4   | 5   | 6  | 7  |
+        // |----------------------------------------|
+        // |     | SUB | SBC | AND | XOR | OR | CP |
+        // `----------------------------------------'
+        private static final int SUB = 2, SBC = 3, AND = 4, XOR = 5, OR = 6;
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final ConstantPool pool = new ConstantPool();
+        private final int szp = pool.field(TABLES_NAME, "SZP", "[I");
+        private final int sbc = pool.field(TABLES_NAME, "SBC", "[B");
+
+
+
+        /** regs[dst] = regs[src] */
+        void loadRegister(int dst, int src) {
+            op(ALOAD_1); push(dst); register(src); op(IASTORE);
+        }
+
+
+
+        /** regs[dst] = n */
+        void loadImmediate(int dst, int n) {
+            op(ALOAD_1); push(dst); push(n); op(IASTORE);
+        }
+
+
+
+        /**
+         * a = regs[A], b = regs[src] or n, then the operation,
+         * with F set the way flagsSZP and flagsSbc set it.
+         */
+        void alu(int operation, int src, boolean immediate, int n) {
+            register(REG_A); store(LOCAL_A);
+            if (immediate) { push(n); } else { register(src); }
+            store(LOCAL_B);
+
+            if (operation >= AND && operation <= OR) {
+                load(LOCAL_A); load(LOCAL_B);
+                op(operation == AND ? IAND : operation == XOR ? IXOR : IOR);
+                store(LOCAL_RESULT);
+
+                op(ALOAD_1); push(REG_A); load(LOCAL_RESULT); op(IASTORE);
+
+                // F = (F & XY) | SZP[r], with H set by AND
+                op(ALOAD_1); push(REG_F);
+                register(REG_F); push(FlagTables.FLAG_XY); op(IAND);
+                getStatic(szp); load(LOCAL_RESULT); op(IALOAD);
+                op(IOR);
+                if (operation == AND) { push(FlagTables.FLAG_H); op(IOR); }
+                op(IASTORE);
+                return;
+            }
+
+            if (operation == SBC) {
+                register(REG_F); push(FlagTables.FLAG_C); op(IAND);
+            } else {
+                op(ICONST_0);
+            }
+            store(LOCAL_CARRY);
+
+            if (operation == SUB || operation == SBC) {
+                op(ALOAD_1); push(REG_A);
+                load(LOCAL_A); load(LOCAL_B); op(ISUB); load(LOCAL_CARRY); op(ISUB);
+                push(0xff); op(IAND);
+                op(IASTORE);
+            }
+
+            // F = (F & XY) | (SBC[(carry << 16) | (a << 8) | b] & 0xff)
+            op(ALOAD_1); push(REG_F);
+            register(REG_F); push(FlagTables.FLAG_XY); op(IAND);
+            getStatic(sbc);
+            load(LOCAL_CARRY); push(16); op(ISHL);
+            load(LOCAL_A); push(8); op(ISHL); op(IOR);
+            load(LOCAL_B); op(IOR);
+            op(BALOAD); push(0xff); op(IAND);
+            op(IOR);
+            op(IASTORE);
+        }
+
+
+
+        private void register(int index) { op(ALOAD_1); push(index); op(IALOAD); }
+
+        private void load(int local) { op(ILOAD); op(local); }
+
+        private void store(int local) { op(ISTORE); op(local); }
+
+        private void getStatic(int field) { op(GETSTATIC); u2(field); }
+
+        private void op(int value) { body.write(value); }
+
+        private void u2(int value) { body.write(value >>> 8); body.write(value); }
+
+        private void push(int value) {
+            if (value >= 0 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= -128 && value <= 127) {
+                op(BIPUSH); op(value);
+            } else {
+                op(SIPUSH); u2(value);
+            }
+        }
+
+
+
+        /**
+         * Wrap the body into a class implementing {@link Code}.
+         *
+         * @return the class file
+         */
+        byte[] classFile() {
+            int thisClass = pool.type(CLASS_NAME);
+            int superClass = pool.type("java/lang/Object");
+            int codeInterface = pool.type(CODE_NAME);
+            int objectInit = pool.method("java/lang/Object", "<init>", "()V");
+            int init = pool.utf8("<init>");
+            int run = pool.utf8("run");
+            int noArgs = pool.utf8("()V");
+            int runArgs = pool.utf8("([I)V");
+            int codeAttribute = pool.utf8("Code");
+
+            op(RETURN);
+            byte[] runBody = body.toByteArray();
+            byte[] initBody = { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >>> 8), (byte) objectInit, (byte) RETURN };
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(0xcafebabe);
+                out.writeShort(0);
+                out.writeShort(52);                 // Java 8, no stack map frames needed
+                pool.writeTo(out);
+
+                out.writeShort(0x0030);             // final, super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(codeInterface);
+                out.writeShort(0);                  // fields
+
+                out.writeShort(2);                  // methods
+                writeMethod(out, init, noArgs, codeAttribute, 1, 1, initBody);
+                writeMethod(out, run, runArgs, codeAttribute, MAX_STACK, MAX_LOCALS, runBody);
+
+                out.writeShort(0);                  // attributes
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+
+
+        private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeAttribute,
+                                        int maxStack, int maxLocals, byte[] code) throws IOException {
+            out.writeShort(0x0001);                 // public
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);                      // exception table
+            out.writeShort(0);                      // attributes
+        }
+    }
+
+
+
+    /**
+     * The constant pool of a generated class, every entry added once.
+     */
+    private static final class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+
+
+        int utf8(String value) {
+            return entry("U" + value, () -> { out.writeByte(1); out.writeUTF(value); });
+        }
+
+
+
+        int type(String name) {
+            int utf8 = utf8(name);
+            return entry("C" + name, () -> { out.writeByte(7); out.writeShort(utf8); });
+        }
+
+
+
+        int field(String owner, String name, String descriptor) {
+            return member(9, owner, name, descriptor);
+        }
+
+
+
+        int method(String owner, String name, String descriptor) {
+            return member(10, owner, name, descriptor);
+        }
+
+
+
+        private int member(int tag, String owner, String name, String descriptor) {
+            int type = type(owner);
+            int nameUtf8 = utf8(name);
+            int descriptorUtf8 = utf8(descriptor);
+            int nameAndType = entry("N" + name + ":" + descriptor,
+                    () -> { out.writeByte(12); out.writeShort(nameUtf8); out.writeShort(descriptorUtf8); });
+            return entry(tag + owner + "." + name + ":" + descriptor,
+                    () -> { out.writeByte(tag); out.writeShort(type); out.writeShort(nameAndType); });
+        }
+
+
+
+        private interface Writer {
+            void write() throws IOException;
+        }
+
+
+
+        private int entry(String key, Writer writer) {
+            Integer index = entries.get(key);
+            if (index != null) { return index; }
+
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, count);
+            return count++;
+        }
+
+
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            target.write(bytes.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.cpu;
+
+
+
+/**
+ * A compact capture of the complete state of a {@link Z80}.
+ *
+ * <pre>
+ * The state is packed into a single primitive buffer, so that capturing and
+ * restoring is a matter of copying a few dozen ints, without any allocation.
+ * A state can be reused for any number of captures, and restored any number
+ * of times.
+ *
+ * .------------------------------------------------.
+ * | slot       | content                           |
+ * |------------------------------------------------|
+ * | 0 .. 21    | the register file, see Z80        |
+ * | 22, 23     | PC, SP                            |
+ * | 24         | IFF1, IFF2, halted, irqSuspended, |
+ * |            | nopAfterNoni, busy as bits 0 - 5  |
+ * | 25, 26     | interrupt mode, pending interrupt |
+ * | 27         | busy cycles                       |
+ * | 28, 29     | lazy flags kind and index         |
+ * | 30, 31     | cycle count, low and high int     |
+ * | 32, 33     | instruction count, low and high   |
+ * `------------------------------------------------'
+ *
+ * The layout is identified by {@link #VERSION}, which changes whenever the
+ * layout does. The buffer can be stored as is, along with its version.
+ * </pre>
+ */
+public final class CpuState {
+
+    public static final int VERSION = 1;
+
+    static final int PC = Z80.REGISTER_COUNT;
+    static final int SP = PC + 1;
+    static final int BITS = SP + 1;
+    static final int IM = BITS + 1;
+    static final int IRQ = IM + 1;
+    static final int BUSY_CYCLES = IRQ + 1;
+    static final int LAZY_KIND = BUSY_CYCLES + 1;
+    static final int LAZY_INDEX = LAZY_KIND + 1;
+    static final int CYCLES = LAZY_INDEX + 1;
+    static final int INSTRUCTIONS = CYCLES + 2;
+
+    static final int SIZE = INSTRUCTIONS + 2;
+
+    // the flag bits of the BITS slot
+    static final int IFF1 = 0x01;
+    static final int IFF2 = 0x02;
+    static final int HALTED = 0x04;
+    static final int IRQ_SUSPENDED = 0x08;
+    static final int NOP_AFTER_NONI = 0x10;
+    static final int BUSY = 0x20;
+
+    // the names of the slots, for the reports
+    private static final String[] REGISTER_NAMES = {
+        "B", "C", "D", "E", "H", "L", "F", "A",
+        "IXH", "IXL", "IYH", "IYL", "I", "R"
+    };
+
+    private static final String[] SLOT_NAMES = {
+        "PC", "SP", "BITS", "IM", "IRQ", "BUSY_CYCLES", "LAZY_KIND", "LAZY_INDEX",
+        "CYCLES", "CYCLES_HI", "INSTRUCTIONS", "INSTRUCTIONS_HI"
+    };
+
+    final int[] data = new int[SIZE];
+    private boolean captured = false;
+
+
+
+    public CpuState() { }
+
+
+
+    /**
+     * Copy another state into this one.
+     *
+     * @param other the state to copy
+     */
+    public void copyFrom(CpuState other) {
+        System.arraycopy(other.data, 0, data, 0, SIZE);
+        captured = other.captured;
+    }
+
+
+
+    /**
+     * Load the state from a buffer previously written by {@link #writeTo(int[], int)}.
+     *
+     * @param version the layout version the buffer was written with
+     * @param buffer the buffer
+     * @param offset the offset of the state in the buffer
+     */
+    public void readFrom(int version, int[] buffer, int offset) {
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported cpu state version " + version);
+        }
+        System.arraycopy(buffer, offset, data, 0, SIZE);
+        captured = true;
+    }
+
+
+
+    /**
+     * Store the state into a buffer. The layout is the one of {@link #VERSION}.
+     *
+     * @param buffer the buffer, with room for {@link #size()} ints from the offset on
+     * @param offset the offset of the state in the buffer
+     */
+    public void writeTo(int[] buffer, int offset) {
+        System.arraycopy(data, 0, buffer, offset, SIZE);
+    }
+
+
+
+    /**
+     * @return the number of ints the state takes
+     */
+    public static int size() { return SIZE; }
+
+
+
+    /**
+     * @return true if the state holds a capture
+     */
+    public boolean isCaptured() { return captured; }
+
+
+
+    void setCaptured() { captured = true; }
+
+
+
+    /** @return the captured program counter */
+    public int getPC() { return data[PC]; }
+
+
+
+    /**
+     * Change the captured program counter, for example to start running
+     * from a given address once the state is restored.
+     *
+     * @param pc the program counter
+     */
+    public void setPC(int pc) { data[PC] = pc & 0xffff; }
+
+
+
+    /** @return the captured stack pointer */
+    public int getSP() { return data[SP]; }
+
+
+
+    /** @param sp the new captured stack pointer */
+    public void setSP(int sp) { data[SP] = sp & 0xffff; }
+
+
+
+    /**
+     * Overwrite the registers, the interrupt state and the stack pointer
+     * with the 27 byte header of a SNA snapshot. The program counter is not
+     * part of the header, it is on the stack of the snapshot's memory.
+     *
+     * <pre>
+     * .--------------------------------------------.
+     * | offset  | content                          |
+     * |--------------------------------------------|
+     * | 0       | I                                |
+     * | 1 .. 8  | HL', DE', BC', AF'               |
+     * | 9 .. 18 | HL, DE, BC, IY, IX               |
+     * | 19      | IFF2 as bit 2                    |
+     * | 20      | R                                |
+     * | 21 .. 24| AF, SP                           |
+     * | 25      | interrupt mode                   |
+     * | 26      | border color, not a cpu matter   |
+     * `--------------------------------------------'
+     * </pre>
+     *
+     * @param sna the snapshot, at least its header
+     */
+    public void readSNAHeader(byte[] sna) {
+        if (sna.length < 27) { throw new IllegalArgumentException("Not a SNA snapshot"); }
+
+        data[Z80.REG_I] = sna[0] & 0xff;
+        readPair(sna, 1, Z80.REG_ALT + Z80.REG_H, Z80.REG_ALT + Z80.REG_L);
+        readPair(sna, 3, Z80.REG_ALT + Z80.REG_D, Z80.REG_ALT + Z80.REG_E);
+        readPair(sna, 5, Z80.REG_ALT + Z80.REG_B, Z80.REG_ALT + Z80.REG_C);
+        readPair(sna, 7, Z80.REG_ALT + Z80.REG_A, Z80.REG_ALT + Z80.REG_F);
+        readPair(sna, 9, Z80.REG_H, Z80.REG_L);
+        readPair(sna, 11, Z80.REG_D, Z80.REG_E);
+        readPair(sna, 13, Z80.REG_B, Z80.REG_C);
+        readPair(sna, 15, Z80.REG_IYH, Z80.REG_IYL);
+        readPair(sna, 17, Z80.REG_IXH, Z80.REG_IXL);
+        data[Z80.REG_R] = sna[20] & 0xff;
+        readPair(sna, 21, Z80.REG_A, Z80.REG_F);
+        data[SP] = (sna[23] & 0xff) | (sna[24] & 0xff) << 8;
+
+        // the snapshot was taken on an interrupt, RETN restores IFF1 from IFF2
+        data[BITS] = (sna[19] & 0x04) != 0 ? IFF1 | IFF2 : 0;
+        data[IM] = sna[25] & 0x03;
+        data[BUSY_CYCLES] = 0;
+        data[LAZY_KIND] = 0;
+        data[LAZY_INDEX] = 0;
+    }
+
+
+
+    private void readPair(byte[] sna, int offset, int hi, int lo) {
+        data[lo] = sna[offset] & 0xff;
+        data[hi] = sna[offset + 1] & 0xff;
+    }
+
+
+
+    /**
+     * Find the first slot in which two states differ. The instruction count is
+     * left out, as it depends on how the instructions were dispatched.
+     *
+     * @param other the state to compare with
+     * @return the first differing slot, or -1 if the states match
+     */
+    public int firstDifference(CpuState other) {
+        for (int slot = 0; slot < INSTRUCTIONS; slot++) {
+            if (data[slot] != other.data[slot]) { return slot; }
+        }
+        return -1;
+    }
+
+
+
+    /**
+     * @param slot a slot of the buffer
+     * @return the readable name of the slot
+     */
+    public static String slotName(int slot) {
+        if (slot < Z80.REGISTER_COUNT) {
+            String name = REGISTER_NAMES[slot % Z80.REG_ALT + (slot >= Z80.REG_IXH ? Z80.REG_ALT : 0)];
+            return slot >= Z80.REG_ALT && slot < Z80.REG_IXH ? name + "'" : name;
+        }
+        return SLOT_NAMES[slot - Z80.REGISTER_COUNT];
+    }
+
+
+
+    /**
+     * @param slot a slot of the buffer
+     * @return the value of the slot
+     */
+    public int get(int slot) { return data[slot]; }
+
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int slot = 0; slot < SIZE; slot++) {
+            if (slot > 0) { sb.append(slot % 8 == 0 ? '\n' : ' '); }
+            sb.append(slotName(slot)).append('=').append(Integer.toHexString(data[slot]));
+        }
+        return sb.toString();
+    }
+
+
+
+    /** @return the captured cycle count */
+    public long getCycleCount() { return getLong(CYCLES); }
+
+
+
+    /** @return the captured instruction count */
+    public long getInstructionCount() { return getLong(INSTRUCTIONS); }
+
+
+
+    long getLong(int slot) {
+        return (data[slot] & 0xffffffffL) | ((long) data[slot + 1] << 32);
+    }
+
+
+
+    void setLong(int slot, long value) {
+        data[slot] = (int) value;
+        data[slot + 1] = (int) (value >>> 32);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.cpu;
+
+
+
+/**
+ * Precomputed flag tables for the Z80 ALU.
+ *
+ * <pre>
+ * All tables are built once, at class initialization time, so that an
+ * instruction body can compute the new value of the F register with one
+ * or two table lookups instead of a series of helper calls and flag setters.
+ * Only the updates the bodies in this tree use are tabulated: parity for
+ * the logical operations, SUB/SBC/CP and the CB rotates and shifts.
+ *
+ * Only the documented flags are stored in the tables. The undocumented
+ * bits 3 and 5 (X and Y) are not emulated, so callers are expected to
+ * preserve them from the previous F value, just like the flag setters do.
+ *
+ * .-------------------------------------------------------.
+ * | BIT   |  7  |  6  |  5  |  4  |  3  |  2  |  1  |  0  |
+ * |-------------------------------------------------------|
+ * |       |  S  |  Z  |  Y  |  H  |  X  | P/V |  N  |  C  |
+ * `-------------------------------------------------------'
+ * </pre>
+ */
+final class FlagTables {
+
+    static final int FLAG_C = 0x01;
+    static final int FLAG_N = 0x02;
+    static final int FLAG_P = 0x04;
+    static final int FLAG_X = 0x08;
+    static final int FLAG_H = 0x10;
+    static final int FLAG_Y = 0x20;
+    static final int FLAG_Z = 0x40;
+    static final int FLAG_S = 0x80;
+
+    // the undocumented flags, preserved by every table driven update
+    static final int FLAG_XY = FLAG_X | FLAG_Y;
+
+    /** S, Z and P (parity) for an 8-bit result, indexed by the result. */
+    static final int[] SZP = new int[256];
+
+    /**
+     * Flags for SUB/SBC/CP A,x indexed by (carry << 16) | (a << 8) | b.
+     * SUB and CP use the lower half of the table, with the carry index bit reset.
+     */
+    static final byte[] SBC = new byte[2 * 256 * 256];
+
+    /*
+     * Rotate and shift tables. Each entry is packed as (result << 8) | flags,
+     * where the flags are the ones set by the CB prefixed variants:
+     * S, Z and P from the result, H and N reset, C from the shifted out bit.
+     * The accumulator rotates (RLCA, RRCA, RLA, RRA) only take the C flag.
+     * RL and RR are indexed by (carry << 8) | a, all others by a.
+     */
+    static final int[] RLC = new int[256];
+    static final int[] RRC = new int[256];
+    static final int[] RL  = new int[512];
+    static final int[] RR  = new int[512];
+    static final int[] SLA = new int[256];
+    static final int[] SRA = new int[256];
+    static final int[] SLL = new int[256];
+    static final int[] SRL = new int[256];
+
+    static {
+        for (int r = 0; r < 256; r++) {
+            SZP[r] = (r & FLAG_S) | (r == 0 ? FLAG_Z : 0)
+                    | ((Integer.bitCount(r) & 0x1) == 0 ? FLAG_P : 0);
+        }
+
+        for (int c = 0; c < 2; c++) {
+            for (int a = 0; a < 256; a++) {
+                for (int b = 0; b < 256; b++) {
+                    int idx = (c << 16) | (a << 8) | b;
+                    int diff = a - b - c;
+                    int r = diff & 0xff;
+                    SBC[idx] = (byte) ((r & FLAG_S) | (r == 0 ? FLAG_Z : 0)
+                            | ((a & 0x0f) - (b & 0x0f) - c < 0 ? FLAG_H : 0)
+                            | (((a ^ b) & (a ^ r) & 0x80) != 0 ? FLAG_P : 0)
+                            | FLAG_N
+                            | (diff < 0 ? FLAG_C : 0));
+                }
+            }
+        }
+
+        for (int a = 0; a < 256; a++) {
+            int b7 = (a >>> 7) & 0x1;
+            int b0 = a & 0x1;
+
+            RLC[a] = pack(((a << 1) | b7) & 0xff, b7);
+            RRC[a] = pack(((a >>> 1) | (b0 << 7)) & 0xff, b0);
+            SLA[a] = pack((a << 1) & 0xff, b7);
+            SRA[a] = pack(((a >>> 1) | (b7 << 7)) & 0xff, b0);
+            SLL[a] = pack(((a << 1) | 0x1) & 0xff, b7);
+            SRL[a] = pack((a >>> 1) & 0xff, b0);
+
+            for (int c = 0; c < 2; c++) {
+                RL[(c << 8) | a] = pack(((a << 1) | c) & 0xff, b7);
+                RR[(c << 8) | a] = pack(((a >>> 1) | (c << 7)) & 0xff, b0);
+            }
+        }
+    }
+
+
+
+    private FlagTables() { }
+
+
+
+    private static int pack(int r, int carry) {
+        return (r << 8) | SZP[r] | carry;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.cpu;
+
+import java.util.Arrays;
+
+
+
+/**
+ * The set of fused instruction sequences, or superinstructions.
+ *
+ * <pre>
+ * A fused sequence is a pair or a triple of unprefixed opcodes the interpreter
+ * runs as a single dispatch. Every opcode but the last one must be a single
+ * byte instruction with a fixed timing that falls through to the next one,
+ * so the whole sequence is recognized from the opcode bytes alone, when the
+ * first instruction is decoded, and the T-states of all the instructions but
+ * the last one are known in advance. The cpu builds one handler per sequence,
+ * see {@link Z80#setFusion(Fusion)}.
+ *
+ * The sequences are indexed by their first opcode, longest first:
+ *
+ *  0x05 DEC B ------> [ 05 20 ]
+ *  0x7E LD A,(HL) --> [ 7E 23 12 ] [ 7E 23 ]
+ *
+ * .------------------------------------------------------------.
+ * | fixed timing opcodes      | T-states | examples             |
+ * |------------------------------------------------------------|
+ * | LD r,r' / ALU A,r         | 4        | 78 LD A,B  A8 XOR B  |
+ * | LD r,(HL) / LD (HL),r     | 7        | 7E LD A,(HL)         |
+ * | LD A,(rr) / LD (rr),A     | 7        | 1A LD A,(DE)         |
+ * | INC r / DEC r             | 4        | 05 DEC B             |
+ * | INC (HL) / DEC (HL)       | 11       | 34 INC (HL)          |
+ * | INC rr / DEC rr           | 6        | 23 INC HL            |
+ * | ADD HL,rr                 | 11       | 19 ADD HL,DE         |
+ * | PUSH qq / POP qq          | 11 / 10  | E5 PUSH HL           |
+ * | exchanges, rotates of A,  | 4        | EB EX DE,HL  07 RLCA |
+ * |   DAA, CPL, SCF, CCF, NOP |          |                      |
+ * | EX (SP),HL / LD SP,HL     | 19 / 6   |                      |
+ * `------------------------------------------------------------'
+ * </pre>
+ */
+public final class Fusion {
+
+    /**
+     * <pre>
+     * Common idioms of Z80 game code.
+     *
+     * .------------------------------------.
+     * | sequence              | opcodes    |
+     * |------------------------------------|
+     * | LD A,(HL) ; INC HL    | 7E 23      |
+     * | LD (HL),A ; INC HL    | 77 23      |
+     * | LD (DE),A ; INC DE    | 12 13      |
+     * | LD A,(DE) ; INC DE    | 1A 13      |
+     * | DEC B ; JR NZ,e       | 05 20      |
+     * | DEC C ; JR NZ,e       | 0D 20      |
+     * | ADD HL,DE ; EX DE,HL  | 19 EB      |
+     * | LD A,(HL) ; INC HL ;  | 7E 23 12   |
+     * |   LD (DE),A           |            |
+     * `------------------------------------'
+     * </pre>
+     */
+    private static final int[][] DEFAULT_SEQUENCES = {
+            {0x7E, 0x23}, {0x77, 0x23}, {0x12, 0x13}, {0x1A, 0x13},
+            {0x05, 0x20}, {0x0D, 0x20}, {0x19, 0xEB},
+            {0x7E, 0x23, 0x12}
+    };
+
+    private static final int MAX_SEQUENCE_LENGTH = 3;
+
+    // the T-states of the single byte, fixed timing, fall through opcodes, 0 for all others
+    private static final int[] FIXED_T_STATES = new int[256];
+
+    // the fixed timing opcodes writing to memory, possibly over an opcode still to run
+    private static final boolean[] WRITES_MEMORY = new boolean[256];
+
+    static {
+        for (int op = 0x40; op < 0xc0; op++) {
+            boolean hl = (op & 0x07) == 0x06 || (op < 0x80 && (op & 0x38) == 0x30);
+            FIXED_T_STATES[op] = hl ? 7 : 4;
+            WRITES_MEMORY[op] = op < 0x80 && (op & 0x38) == 0x30;
+        }
+        FIXED_T_STATES[0x76] = 0;       // HALT
+        WRITES_MEMORY[0x76] = false;
+
+        for (int r = 0; r < 8; r++) {
+            FIXED_T_STATES[0x04 | (r << 3)] = r == 6 ? 11 : 4;     // INC r
+            FIXED_T_STATES[0x05 | (r << 3)] = r == 6 ? 11 : 4;     // DEC r
+        }
+        WRITES_MEMORY[0x34] = WRITES_MEMORY[0x35] = true;
+
+        for (int rr = 0; rr < 4; rr++) {
+            FIXED_T_STATES[0x03 | (rr << 4)] = 6;      // INC rr
+            FIXED_T_STATES[0x0B | (rr << 4)] = 6;      // DEC rr
+            FIXED_T_STATES[0x09 | (rr << 4)] = 11;     // ADD HL,rr
+            FIXED_T_STATES[0xC1 | (rr << 4)] = 10;     // POP qq
+            FIXED_T_STATES[0xC5 | (rr << 4)] = 11;     // PUSH qq
+            WRITES_MEMORY[0xC5 | (rr << 4)] = true;
+        }
+
+        for (int op : new int[] {0x02, 0x0A, 0x12, 0x1A}) { FIXED_T_STATES[op] = 7; }
+        WRITES_MEMORY[0x02] = WRITES_MEMORY[0x12] = true;
+
+        for (int op : new int[] {0x00, 0x07, 0x08, 0x0F, 0x17, 0x1F, 0x27, 0x2F, 0x37, 0x3F, 0xD9, 0xEB}) {
+            FIXED_T_STATES[op] = 4;
+        }
+        FIXED_T_STATES[0xE3] = 19;     // EX (SP),HL
+        FIXED_T_STATES[0xF9] = 6;      // LD SP,HL
+        WRITES_MEMORY[0xE3] = true;
+    }
+
+
+
+    /**
+     * A fused sequence and its precomputed timing.
+     */
+    static final class Sequence {
+        final int[] opcodes;
+        final String name;
+
+        // the T-states of every instruction but the last one, and their sum
+        final int[] tStates;
+        final int prefixTStates;
+
+        // for every instruction but the last one: it may overwrite an opcode still to run
+        final boolean[] writesMemory;
+
+        long hits;
+
+        private Sequence(int[] opcodes) {
+            this.opcodes = opcodes.clone();
+
+            StringBuilder name = new StringBuilder();
+            for (int op : opcodes) { name.append(name.length() == 0 ? "" : " ").append(String.format("%02X", op)); }
+            this.name = name.toString();
+
+            int last = opcodes.length - 1;
+            tStates = new int[last];
+            writesMemory = new boolean[last];
+            int sum = 0;
+            for (int i = 0; i < last; i++) {
+                tStates[i] = FIXED_T_STATES[opcodes[i]];
+                writesMemory[i] = WRITES_MEMORY[opcodes[i]];
+                sum += tStates[i];
+            }
+            prefixTStates = sum;
+        }
+    }
+
+
+
+    // the sequences by first opcode, longest first, null where none starts
+    private final Sequence[][] byFirst = new Sequence[256][];
+    private int count;
+
+    private long dispatches;
+
+
+
+    /**
+     * @return a fusion set with the common Z80 idioms
+     */
+    public static Fusion withDefaults() {
+        Fusion fusion = new Fusion();
+        for (int[] sequence : DEFAULT_SEQUENCES) { fusion.add(sequence); }
+        return fusion;
+    }
+
+
+
+    /**
+     * Add a fused sequence.
+     * Must be done before the fusion set is handed to the cpu.
+     *
+     * @param opcodes two or three unprefixed opcodes. All but the last one
+     *                must be single byte, fixed timing instructions.
+     */
+    public void add(int... opcodes) {
+        if (opcodes.length < 2 || opcodes.length > MAX_SEQUENCE_LENGTH) {
+            throw new IllegalArgumentException("A fused sequence has two or three opcodes");
+        }
+
+        for (int i = 0; i < opcodes.length; i++) {
+            int op = opcodes[i];
+            if (op == 0xCB || op == 0xED || op == 0xDD || op == 0xFD || (op & ~0xff) != 0) {
+                throw new IllegalArgumentException(String.format("Cannot fuse opcode %02X", op));
+            }
+            if (i < opcodes.length - 1 && FIXED_T_STATES[op] == 0) {
+                throw new IllegalArgumentException(String.format("Opcode %02X is not a single byte, fixed timing instruction", op));
+            }
+        }
+
+        Sequence[] sequences = byFirst[opcodes[0]];
+        if (sequences == null) { sequences = new Sequence[0]; }
+        for (Sequence sequence : sequences) {
+            if (Arrays.equals(sequence.opcodes, opcodes)) { return; }
+        }
+
+        sequences = Arrays.copyOf(sequences, sequences.length + 1);
+        sequences[sequences.length - 1] = new Sequence(opcodes);
+        Arrays.sort(sequences, (a, b) -> b.opcodes.length - a.opcodes.length);
+        byFirst[opcodes[0]] = sequences;
+        count++;
+    }
+
+
+
+    /**
+     * @param opcode the first opcode
+     * @return the sequences starting with the opcode, longest first, or null if none
+     */
+    Sequence[] startingWith(int opcode) {
+        return byFirst[opcode];
+    }
+
+
+
+    /** Count a dispatch through the decode tables. */
+    void dispatched() {
+        dispatches++;
+    }
+
+
+
+    /** Forget the statistics. */
+    public void clearStatistics() {
+        for (Sequence[] sequences : byFirst) {
+            if (sequences == null) { continue; }
+            for (Sequence sequence : sequences) { sequence.hits = 0; }
+        }
+        dispatches = 0;
+    }
+
+
+
+    /**
+     * Report the hit rate of every sequence.
+     * The hit rate is the share of all the executed instructions
+     * that were run fused to the previous one.
+     *
+     * @return the report, one line per sequence
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+
+        long fused = 0;
+        for (Sequence[] sequences : byFirst) {
+            if (sequences == null) { continue; }
+            for (Sequence sequence : sequences) { fused += sequence.hits * (sequence.opcodes.length - 1); }
+        }
+        long total = dispatches + fused;
+
+        report.append(String.format("Fused %d of %d instructions (%.2f%%), %d sequences%n",
+                fused, total, percent(fused, total), count));
+        for (Sequence[] sequences : byFirst) {
+            if (sequences == null) { continue; }
+            for (Sequence sequence : sequences) {
+                long saved = sequence.hits * (sequence.opcodes.length - 1);
+                report.append(String.format("  %-10s %12d  %6.2f%%%n", sequence.name, sequence.hits, percent(saved, total)));
+            }
+        }
+
+        return report.toString();
+    }
+
+
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : 100.0 * part / total;
+    }
+}
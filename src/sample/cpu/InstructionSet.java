@@ -30,41 +30,179 @@ package sample.cpu;
 
 abstract class InstructionSet {
 
+    // decode table indices, one for each opcode prefix
+    static final int BASE = 0;
+    static final int CB   = 1;
+    static final int ED   = 2;
+    static final int DD   = 3;
+    static final int FD   = 4;
+    static final int DDCB = 5;
+    static final int FDCB = 6;
+
+    static final int TABLE_COUNT = 7;
+
+    /**
+     * <pre>
+     * One dense 256-entry decode table per prefix: none, CB, ED, DD, FD, DDCB and FDCB.
+     * There are only 1268 instructions, so some of the entries are still holes.
+     * These holes are used to detect invalid opcodes.
+     *
+     * Wherever an instruction has to be identified by a single number,
+     * the dense key (table << 8) | opcode is used. See {@link #key(int, int)}.
+     * </pre>
+     */
+    private final Instruction[] base = new Instruction[256];
+    private final Instruction[] cb   = new Instruction[256];
+    private final Instruction[] ed   = new Instruction[256];
+    private final Instruction[] dd   = new Instruction[256];
+    private final Instruction[] fd   = new Instruction[256];
+    private final Instruction[] ddcb = new Instruction[256];
+    private final Instruction[] fdcb = new Instruction[256];
+
+    private final Instruction[][] tables = { base, cb, ed, dd, fd, ddcb, fdcb };
+
     /**
-     * Keep in mind that the 0xDDCB and 0xFDCB prefixes are remapped to
-     * 0xAA and 0xBB respectively. There are only 1268 instructions and
-     * the rest of the array is filled with holes. These holes are used
-     * to detect invalid opcodes.
+     * <pre>
+     * Instructions that neither read nor modify the F register, by dense key.
+     * Loads, exchanges not involving AF, unconditional jumps, calls and returns,
+     * stack operations not involving AF, RES/SET, IM, DI/EI and OUT.
+     * Entries for holes in the decode tables are meaningless.
+     * </pre>
      */
-    private final Instruction[] instructions = new Instruction[0xfdff];
+    static final boolean[] FLAGS_UNTOUCHED = new boolean[TABLE_COUNT * 256];
+
+    static {
+        int[] base = {
+                0x00, 0x01, 0x02, 0x03, 0x06, 0x0A, 0x0B, 0x0E,
+                0x10, 0x11, 0x12, 0x13, 0x16, 0x18, 0x1A, 0x1B, 0x1E,
+                0x21, 0x22, 0x23, 0x26, 0x2A, 0x2B, 0x2E,
+                0x31, 0x32, 0x33, 0x36, 0x3A, 0x3B, 0x3E,
+                0xC1, 0xC3, 0xC5, 0xC7, 0xC9, 0xCD, 0xCF,
+                0xD1, 0xD3, 0xD5, 0xD7, 0xD9, 0xDB, 0xDF,
+                0xE1, 0xE3, 0xE5, 0xE7, 0xE9, 0xEB, 0xEF,
+                0xF3, 0xF7, 0xF9, 0xFB, 0xFF
+        };
+        int[] ed = {
+                0x41, 0x49, 0x51, 0x59, 0x61, 0x69, 0x79,   // OUT (C),r
+                0x43, 0x53, 0x63, 0x73, 0x4B, 0x5B, 0x6B, 0x7B,
+                0x45, 0x4D, 0x46, 0x56, 0x5E, 0x47, 0x4F
+        };
+
+        for (int op : base) {
+            FLAGS_UNTOUCHED[key(BASE, op)] = true;
+            FLAGS_UNTOUCHED[key(DD, op)] = true;
+            FLAGS_UNTOUCHED[key(FD, op)] = true;
+        }
+        for (int op = 0x40; op < 0x80; op++) {  // LD r,r' and HALT
+            FLAGS_UNTOUCHED[key(BASE, op)] = true;
+            FLAGS_UNTOUCHED[key(DD, op)] = true;
+            FLAGS_UNTOUCHED[key(FD, op)] = true;
+        }
+        for (int op : ed) {
+            FLAGS_UNTOUCHED[key(ED, op)] = true;
+        }
+        for (int op = 0x80; op < 0x100; op++) { // RES b and SET b
+            FLAGS_UNTOUCHED[key(CB, op)] = true;
+            FLAGS_UNTOUCHED[key(DDCB, op)] = true;
+            FLAGS_UNTOUCHED[key(FDCB, op)] = true;
+        }
+    }
+
+    /**
+     * <pre>
+     * Instructions that may transfer control anywhere else than to the
+     * following instruction, or that change how interrupts are accepted,
+     * by dense key. A cached block always ends with one of these.
+     * Jumps, calls, returns, RST, HALT, DI/EI and the repeating block instructions.
+     * </pre>
+     */
+    static final boolean[] ENDS_BLOCK = new boolean[TABLE_COUNT * 256];
+
+    static {
+        int[] base = {
+                0x10, 0x18, 0x20, 0x28, 0x30, 0x38, 0x76,
+                0xC0, 0xC2, 0xC3, 0xC4, 0xC7, 0xC8, 0xC9, 0xCA, 0xCC, 0xCD, 0xCF,
+                0xD0, 0xD2, 0xD4, 0xD7, 0xD8, 0xDA, 0xDC, 0xDF,
+                0xE0, 0xE2, 0xE4, 0xE7, 0xE8, 0xE9, 0xEA, 0xEC, 0xEF,
+                0xF0, 0xF2, 0xF3, 0xF4, 0xF7, 0xF8, 0xFA, 0xFB, 0xFC, 0xFF
+        };
+        int[] ed = {
+                0x45, 0x4D, 0x55, 0x5D, 0x65, 0x6D, 0x75, 0x7D,    // RETN and RETI
+                0xB0, 0xB1, 0xB2, 0xB3, 0xB8, 0xB9, 0xBA, 0xBB     // LDIR .. OTDR
+        };
+
+        for (int op : base) { ENDS_BLOCK[key(BASE, op)] = true; }
+        for (int op : ed) { ENDS_BLOCK[key(ED, op)] = true; }
+
+        ENDS_BLOCK[key(DD, 0xE9)] = true;   // JP (IX)
+        ENDS_BLOCK[key(FD, 0xE9)] = true;   // JP (IY)
+    }
+
+    /**
+     * <pre>
+     * Instructions that neither write memory nor access ports, and do not touch
+     * the stack or the interrupt state, by dense key. Repeating a run of these
+     * from the same registers always does the same, as long as the memory
+     * it reads does not change. Port reads are left out: an input port can
+     * change at any time, like the keyboard or a playing tape, so a loop
+     * polling one is never idle.
+     * Loads into registers, ALU operations on registers, (HL) and immediates,
+     * rotates, BIT, RES/SET on registers, jumps and DJNZ.
+     * </pre>
+     */
+    static final boolean[] NO_SIDE_EFFECTS = new boolean[TABLE_COUNT * 256];
+
+    static {
+        int[] base = {
+                0x00, 0x01, 0x03, 0x04, 0x05, 0x06, 0x07, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F,
+                0x10, 0x11, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x1B, 0x1C, 0x1D, 0x1E, 0x1F,
+                0x20, 0x21, 0x23, 0x24, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2A, 0x2B, 0x2C, 0x2D, 0x2E, 0x2F,
+                0x30, 0x31, 0x33, 0x37, 0x38, 0x39, 0x3A, 0x3B, 0x3C, 0x3D, 0x3E, 0x3F,
+                0xC2, 0xC3, 0xC6, 0xCA, 0xCE, 0xD2, 0xD6, 0xDA, 0xDE,
+                0xE2, 0xE6, 0xE9, 0xEA, 0xEB, 0xEE, 0xF2, 0xF6, 0xF9, 0xFA, 0xFE
+        };
+        int[] ed = {
+                0x42, 0x4A, 0x52, 0x5A, 0x62, 0x6A, 0x72, 0x7A,    // SBC/ADC HL,ss
+                0x4B, 0x5B, 0x6B, 0x7B, 0x44, 0x57, 0x5F
+        };
+
+        for (int op : base) { NO_SIDE_EFFECTS[key(BASE, op)] = true; }
+        for (int op = 0x40; op < 0xC0; op++) {  // LD r,r', LD r,(HL) and ALU, but not LD (HL),r
+            if (op < 0x70 || op > 0x77) { NO_SIDE_EFFECTS[key(BASE, op)] = true; }
+        }
+        for (int op : ed) { NO_SIDE_EFFECTS[key(ED, op)] = true; }
+        for (int op = 0x00; op < 0x100; op++) { // BIT b,(HL) reads, the other (HL) forms write
+            if ((op & 0x07) != 0x06 || (op >= 0x40 && op < 0x80)) { NO_SIDE_EFFECTS[key(CB, op)] = true; }
+        }
+    }
 
     {
-        instructions[0x0000] = (op) -> NOP();                 //  NOP
-        instructions[0x0001] = (op) -> LD_BC_NN();            //  LD BC,nn
-        instructions[0x0002] = (op) -> LD_BCa_A();            //  LD (BC),A
-        instructions[0x0003] = (op) -> INC_BC();              //  INC BC
-        instructions[0x0004] = (op) -> INC_R(op);             //  INC R
-        instructions[0x0005] = (op) -> DEC_R(op);             //  DEC R
-        instructions[0x0006] = (op) -> LD_R_n(op);            //  LD B,n
-        instructions[0x0007] = (op) -> RLCA();                //  RLCA
-        instructions[0x0008] = (op) -> EX_AF_AF_();           //  EX AF,AF'
-        instructions[0x0009] = (op) -> ADD_HL_SS(op);         //  ADD HL,ss
-        instructions[0x000A] = (op) -> LD_A_BCa();            //  LD A,(BC)
-        instructions[0xFDA6] = (op) -> AND_IYd();             //  AND (IY+d)
-        instructions[0xFDAC] = (op) -> XOR_IYH();             //  XOR IYH*
-        instructions[0xFDAD] = (op) -> XOR_IYL();             //  XOR IYL*
-        instructions[0xFDAE] = (op) -> XOR_IYd();             //  XOR (IY+d)
-        instructions[0xFDB4] = (op) -> OR_IYH();              //  OR IYH*
-        instructions[0xFDB5] = (op) -> OR_IYL();              //  OR IYL*
-        instructions[0xFDB6] = (op) -> OR_IYd();              //  OR (IY+d)
-        instructions[0xFDBC] = (op) -> CP_IYH();              //  CP IYH*
-        instructions[0xFDBD] = (op) -> CP_IYL();              //  CP IYL*
-        instructions[0xFDBE] = (op) -> CP_IYd();              //  CP (IY+d)
-        instructions[0xFDE1] = (op) -> POP_IY();              //  POP IY
-        instructions[0xFDE3] = (op) -> EX_SPa_IY();           //  EX (SP),IY
-        instructions[0xFDE5] = (op) -> PUSH_IY();             //  PUSH IY
-        instructions[0xFDE9] = (op) -> JP_IYa();              //  JP (IY)
-        instructions[0xFDF9] = (op) -> LD_SP_IY();            //  LD SP,IY
+        base[0x00] = (op) -> NOP();                 //  NOP
+        base[0x01] = (op) -> LD_BC_NN();            //  LD BC,nn
+        base[0x02] = (op) -> LD_BCa_A();            //  LD (BC),A
+        base[0x03] = (op) -> INC_BC();              //  INC BC
+        base[0x04] = (op) -> INC_R(op);             //  INC R
+        base[0x05] = (op) -> DEC_R(op);             //  DEC R
+        base[0x06] = (op) -> LD_R_n(op);            //  LD B,n
+        base[0x07] = (op) -> RLCA();                //  RLCA
+        base[0x08] = (op) -> EX_AF_AF_();           //  EX AF,AF'
+        base[0x09] = (op) -> ADD_HL_SS(op);         //  ADD HL,ss
+        base[0x0A] = (op) -> LD_A_BCa();            //  LD A,(BC)
+        fd[0xA6]   = (op) -> AND_IYd();             //  AND (IY+d)
+        fd[0xAC]   = (op) -> XOR_IYH();             //  XOR IYH*
+        fd[0xAD]   = (op) -> XOR_IYL();             //  XOR IYL*
+        fd[0xAE]   = (op) -> XOR_IYd();             //  XOR (IY+d)
+        fd[0xB4]   = (op) -> OR_IYH();              //  OR IYH*
+        fd[0xB5]   = (op) -> OR_IYL();              //  OR IYL*
+        fd[0xB6]   = (op) -> OR_IYd();              //  OR (IY+d)
+        fd[0xBC]   = (op) -> CP_IYH();              //  CP IYH*
+        fd[0xBD]   = (op) -> CP_IYL();              //  CP IYL*
+        fd[0xBE]   = (op) -> CP_IYd();              //  CP (IY+d)
+        fd[0xE1]   = (op) -> POP_IY();              //  POP IY
+        fd[0xE3]   = (op) -> EX_SPa_IY();           //  EX (SP),IY
+        fd[0xE5]   = (op) -> PUSH_IY();             //  PUSH IY
+        fd[0xE9]   = (op) -> JP_IYa();              //  JP (IY)
+        fd[0xF9]   = (op) -> LD_SP_IY();            //  LD SP,IY
     }
 
     protected abstract int JR_E();
@@ -109,15 +247,47 @@ abstract class InstructionSet {
 
 
     /**
-     * Get an instruction based on the provided opcode.
+     * Get an instruction from the decode table of the given prefix.
      * Will return null if an instruction with the given opcode
      * is not found.
      *
-     * @param opcode the instruction opcode
+     * @param table the decode table, one of {@link #BASE}, {@link #CB}, {@link #ED},
+     *              {@link #DD}, {@link #FD}, {@link #DDCB} or {@link #FDCB}
+     * @param opcode the instruction opcode, without any prefixes
      * @return the instruction corresponding to the specified opcode.
      */
-    protected Instruction getInstruction(int opcode) {
-        return instructions[opcode];
+    protected Instruction getInstruction(int table, int opcode) {
+        return tables[table][opcode];
+    }
+
+
+
+    /**
+     * Replace an instruction in the decode table of the given prefix.
+     *
+     * @param table the decode table
+     * @param opcode the instruction opcode, without any prefixes
+     * @param instr the new instruction
+     * @return the replaced instruction
+     */
+    protected Instruction setInstruction(int table, int opcode, Instruction instr) {
+        Instruction replaced = tables[table][opcode];
+        tables[table][opcode] = instr;
+        return replaced;
+    }
+
+
+
+    /**
+     * Get the dense key of an instruction.
+     * The key is in the 0 .. (TABLE_COUNT * 256 - 1) range.
+     *
+     * @param table the decode table
+     * @param opcode the instruction opcode, without any prefixes
+     * @return the dense (table, opcode) key
+     */
+    static int key(int table, int opcode) {
+        return (table << 8) | opcode;
     }
 
 
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.cpu;
+
+import sample.bus.GenericBus;
+import sample.debug.DebuggerConfig;
+import sample.utils.FileUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+
+/**
+ * Runs the zexdoc or zexall instruction exerciser from the CLI,
+ * one test group per cpu, all the groups in parallel.
+ *
+ * <pre>
+ * The exerciser is a CP/M program. Its test groups are independent, and are
+ * listed in a table of group addresses ending with 0. For every group, a
+ * separate {@link Z80} and {@link GenericBus} get a copy of the program whose
+ * table only lists that group. The groups then run as tasks of a fork-join pool.
+ *
+ * The few CP/M services the exerciser uses are provided by a small stub:
+ *
+ * .-------------------------------------------------------------------.
+ * | address | content                                                 |
+ * |-------------------------------------------------------------------|
+ * | 0x0000  | OUT (0),A  HALT         warm boot, the group is done     |
+ * | 0x0005  | JP 0xFE00               BDOS entry, 0x0006 is the top    |
+ * |         |                         of the memory, used for SP       |
+ * | 0xFE00  | BDOS 2 and 9, printing through OUT (1),A                 |
+ * `-------------------------------------------------------------------'
+ *
+ * The output of every group is printed line by line as it comes, prefixed
+ * with the group number, and the OK and ERROR results are totalled at the end.
+ *
+ *  java -cp classes sample.cpu.ParallelInstructionTester zexdoc.com [threads]
+ * </pre>
+ */
+public class ParallelInstructionTester {
+
+    private static final int LOAD_ADDRESS = 0x100;
+    private static final int BDOS_STUB = 0xFE00;
+
+    // the table address is the operand of the LD HL,tests following the
+    // LD HL,(6)  LD SP,HL  LD DE,msg1  LD C,9  CALL bdos  of the start code
+    private static final int TABLE_OPERAND_OFFSET = 13;
+
+    // the cycles run between two checks of the warm boot
+    private static final int CHUNK = 1_000_000;
+
+    private static final int[] BDOS = {
+            0x79,               // FE00  LD A,C
+            0xFE, 0x02,         // FE01  CP 2
+            0x28, 0x10,         // FE03  JR Z,char
+            0xFE, 0x09,         // FE05  CP 9
+            0xC0,               // FE07  RET NZ
+            0xD5,               // FE08  PUSH DE
+            0x1A,               // FE09  str: LD A,(DE)
+            0xFE, 0x24,         // FE0A  CP '$'
+            0x28, 0x05,         // FE0C  JR Z,done
+            0xD3, 0x01,         // FE0E  OUT (1),A
+            0x13,               // FE10  INC DE
+            0x18, 0xF6,         // FE11  JR str
+            0xD1,               // FE13  done: POP DE
+            0xC9,               // FE14  RET
+            0x7B,               // FE15  char: LD A,E
+            0xD3, 0x01,         // FE16  OUT (1),A
+            0xC9                // FE18  RET
+    };
+
+
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: ParallelInstructionTester <zexdoc.com | zexall.com> [threads]");
+            return;
+        }
+
+        byte[] program = FileUtils.loadFile(args[0]);
+        if (program.length == 0) {
+            System.out.println("Program has no content!");
+            return;
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        int start = word(program, 0x101 - LOAD_ADDRESS);
+        int table = word(program, start + TABLE_OPERAND_OFFSET - LOAD_ADDRESS);
+
+        List<Integer> groups = new ArrayList<>();
+        for (int entry = table; word(program, entry - LOAD_ADDRESS) != 0; entry += 2) {
+            groups.add(word(program, entry - LOAD_ADDRESS));
+        }
+
+        long begin = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<ForkJoinTask<Group>> tasks = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            Group group = new Group(i, program, table, groups.get(i));
+            tasks.add(pool.submit(group::run));
+        }
+
+        int passed = 0;
+        int failed = 0;
+        for (ForkJoinTask<Group> task : tasks) {
+            Group group = task.join();
+            passed += group.passed;
+            failed += group.failed;
+        }
+        pool.shutdown();
+
+        System.out.printf("%d groups on %d threads in %.1fs: %d OK, %d ERROR%n",
+                groups.size(), threads, (System.nanoTime() - begin) / 1e9, passed, failed);
+    }
+
+
+
+    private static int word(byte[] program, int offset) {
+        return (program[offset] & 0xff) | ((program[offset + 1] & 0xff) << 8);
+    }
+
+
+
+    /**
+     * One test group, on its own cpu and bus.
+     */
+    private static final class Group extends GenericBus {
+
+        private final int number;
+        private final StringBuilder line = new StringBuilder();
+
+        private boolean done = false;
+        private int passed = 0;
+        private int failed = 0;
+
+
+
+        private Group(int number, byte[] program, int table, int group) {
+            this.number = number;
+
+            for (int i = 0; i < program.length; i++) {
+                writeByte(LOAD_ADDRESS + i, program[i] & 0xff);
+            }
+
+            // only this group is left in the table
+            writeWord(table, group);
+            writeWord(table + 2, 0);
+
+            writeByte(0x0000, 0xD3); writeByte(0x0001, 0x00);   // OUT (0),A
+            writeByte(0x0002, 0x76);                            // HALT
+            writeByte(0x0005, 0xC3);                            // JP BDOS_STUB
+            writeWord(0x0006, BDOS_STUB);
+            for (int i = 0; i < BDOS.length; i++) {
+                writeByte(BDOS_STUB + i, BDOS[i]);
+            }
+        }
+
+
+
+        private Group run() {
+            Z80 cpu = new Z80(this, new DebuggerConfig(false, false, true));
+
+            CpuState state = new CpuState();
+            cpu.capture(state);
+            state.setPC(LOAD_ADDRESS);
+            cpu.restore(state);
+
+            while (!done) {
+                cpu.runUntil(cpu.getCycleCount() + CHUNK);
+            }
+            if (line.length() > 0) { print('\n'); }
+            return this;
+        }
+
+
+
+        @Override
+        public void ioWriteByte(int address, int data) {
+            switch (address & 0xff) {
+                case 0: done = true; break;
+                case 1: print(data); break;
+                default: super.ioWriteByte(address, data);
+            }
+        }
+
+
+
+        private void print(int c) {
+            if (c == '\r') { return; }
+            if (c != '\n') { line.append((char) c); return; }
+
+            String text = line.toString();
+            line.setLength(0);
+
+            if (text.contains("OK")) { passed++; }
+            if (text.contains("ERROR")) { failed++; }
+            synchronized (System.out) {
+                System.out.printf("[%2d] %s%n", number, text);
+            }
+        }
+    }
+}
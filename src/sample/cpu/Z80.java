@@ -28,34 +28,73 @@ package sample.cpu;
 
 import sample.bus.Bus;
 import sample.debug.DebuggerConfig;
+import sample.debug.OpcodeHistogram;
+import sample.debug.PcSampler;
 import sample.debug.ReadableOpcode;
+import sample.debug.TraceRecorder;
 import sample.device.ClockedDevice;
 
 import java.io.IOException;
 import java.time.Instant;
 import java.time.Duration;
+import java.util.Arrays;
 
+import static sample.cpu.FlagTables.*;
 import static sample.cpu.Helper.*;
 
 
 
 public final class Z80 extends InstructionSet implements ClockedDevice {
 
-    // 8-bit main and alternate register set
-    private int A = 0, A_ = 0;
-    private int B = 0, B_ = 0;
-    private int C = 0, C_ = 0;
-    private int D = 0, D_ = 0;
-    private int E = 0, E_ = 0;
-    private int H = 0, H_ = 0;
-    private int L = 0, L_ = 0;
-    private int F = 0, F_ = 0;
+    /**
+     * <pre>
+     * The register file. The main 8-bit registers are indexed by their 3-bit
+     * r field, so an r field taken from an opcode is also the array index.
+     * F takes the 110 slot, which the r field uses for (HL).
+     * The alternate set follows at the same indexes plus 8.
+     * A register pair is stored as its high register followed by its low
+     * register, AF being the only exception.
+     *
+     * .-----------------------------------.
+     * | register  | r field | index       |
+     * |-----------------------------------|
+     * | B         | 000     | 0           |
+     * | C         | 001     | 1           |
+     * | D         | 010     | 2           |
+     * | E         | 011     | 3           |
+     * | H         | 100     | 4           |
+     * | L         | 101     | 5           |
+     * | F         | (110)   | 6           |
+     * | A         | 111     | 7           |
+     * | B' .. A'  |         | 8 .. 15     |
+     * | IXH, IXL  |         | 16, 17      |
+     * | IYH, IYL  |         | 18, 19      |
+     * | I, R      |         | 20, 21      |
+     * `-----------------------------------'
+     * </pre>
+     */
+    static final int REG_B = 0;
+    static final int REG_C = 1;
+    static final int REG_D = 2;
+    static final int REG_E = 3;
+    static final int REG_H = 4;
+    static final int REG_L = 5;
+    static final int REG_F = 6;
+    static final int REG_A = 7;
 
-    private int IX = 0; // 16-bit index register
-    private int IY = 0; // 16-bit index register
+    static final int REG_ALT = 8;   // offset of the alternate register set
 
-    private int I = 0;  // 8-bit interrupt vector
-    private int R = 0;  // 8-bit memory refresh register
+    static final int REG_IXH = 16;
+    static final int REG_IXL = 17;
+    static final int REG_IYH = 18;
+    static final int REG_IYL = 19;
+
+    static final int REG_I = 20;    // 8-bit interrupt vector
+    static final int REG_R = 21;    // 8-bit memory refresh register
+
+    static final int REGISTER_COUNT = 22;
+
+    private final int[] regs = new int[REGISTER_COUNT];
 
     private int PC = 0; // 16-bit program counter
     private int SP = 0; // 16-bit external stack pointer
@@ -66,6 +105,10 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
     private InterruptMode IRM = InterruptMode.IM0;  // modes are IM0, IM1 and IM2
     private InterruptType IRQ = InterruptType.NIL;  // types are NIL, NMI and INT
 
+    // values() clones, these are used to restore a captured state without allocating
+    private static final InterruptMode[] INTERRUPT_MODES = InterruptMode.values();
+    private static final InterruptType[] INTERRUPT_TYPES = InterruptType.values();
+
     private boolean halted = false;
     private boolean irqSuspended = false;
     private boolean nopAfterNoni = false;
@@ -76,15 +119,93 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
     private int busyCycles;
 
     private final Bus bus;
+    private final DebuggerConfig config;
 
     private long cycleCount = 0;    // total number of cycles executed
     private long instrCount = 0;    // total number of instructions executed
 
+    // decoded basic blocks, null when the block cache is disabled,
+    // and whether their straight register only runs get compiled
+    private BlockCache blockCache;
+    private boolean blockCompilation = true;
+
+    // the regular block instructions, kept while the bulk ones replace them
+    private Instruction[] iteratedBlockInstructions;
+
+    // fused instruction sequences, null when the fusion is disabled,
+    // and their handlers, laid out like the sequences by first opcode
+    private Fusion fusion;
+    private Instruction[][] fusedHandlers;
+
+    // the cycle count of the next event, blocks and fused sequences stop before it
+    private long nextEvent = Long.MAX_VALUE;
+
+    // the T-states run by the current dispatch before the executing instruction,
+    // cycleCount only advances once a whole block or fused sequence is done
+    private int elapsed;
+
+    // a bound on the cycles a HALT or an idle loop skips at once, about one second at 3.5MHz
+    private static final int MAX_SKIPPED_CYCLES = 1 << 22;
+
+    // whether a HALT does all its NOPs up to the next event at once
+    private boolean haltSkipping = false;
+
+    // idle loop detection. a loop is idle when two consecutive iterations start
+    // from the same state and run only instructions without side effects.
+    private static final int MAX_IDLE_LOOP_SPAN = 32;      // bytes between the head and the branch
+    private static final int MAX_IDLE_LOOP_LENGTH = 16;    // instructions per iteration
+
+    private boolean idleSkipping = false;
+    private int idleHead = -1;          // the head of the loop candidate, -1 if none
+    private int idleBranch;             // the backward branch closing the loop
+    private int idleLength;             // instructions run since the head
+    private long idleStart;             // the cycle count when the head was reached
+    private int idleSP;
+    private final int[] idleRegs = new int[REGISTER_COUNT];
+    private long idleCyclesSkipped = 0;
+
+    // lazy flag evaluation. when enabled, the instructions that redefine all the
+    // documented flags only record which table and index the flags come from.
+    // F is materialized right before an instruction that reads or partially updates it.
+    private static final int LAZY_NONE = 0;
+    private static final int LAZY_SZP  = 1;    // index is the result
+    private static final int LAZY_SBC  = 2;    // index is (carry << 16) | (a << 8) | b
+
+    private boolean lazyFlags = false;
+    private int lazyKind = LAZY_NONE;
+    private int lazyIndex;
+
+    // instructions that leave pending lazy flags untouched, by dense key:
+    // the ones not touching F at all, and the ones recording their flags lazily.
+    private static final boolean[] LAZY_SAFE = FLAGS_UNTOUCHED.clone();
+
+    static {
+        int[] recorders = {
+                key(DD, 0xAC), key(DD, 0xAD), key(DD, 0xB5), key(DD, 0xBC),
+                key(FD, 0xAC), key(FD, 0xAD), key(FD, 0xB4), key(FD, 0xB5)
+        };
+        for (int k : recorders) { LAZY_SAFE[k] = true; }
+    }
+
 
 
     /* this is used for internal testing and debugging purposes only */
     private final Debugger debugger = new Debugger();
 
+    // the trace of the last executed instructions, null when not tracing
+    private TraceRecorder trace;
+
+    // per instruction counters. a constant, so that the counting compiles away when disabled
+    private static final boolean HISTOGRAM = DebuggerConfig.HST_MODE;
+    private final OpcodeHistogram histogram = HISTOGRAM ? new OpcodeHistogram() : null;
+
+    // used when copying the state of another cpu
+    private final CpuState copyBuffer = new CpuState();
+
+    // the guest profiler and the cycle count of its next sample, Long.MAX_VALUE when not sampling
+    private PcSampler sampler;
+    private long nextSample = Long.MAX_VALUE;
+
 
 
     /**
@@ -92,7 +213,20 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
      *
      * @param bus the RAM memory
      */
-    public Z80(Bus bus) { this.bus = bus; }
+    public Z80(Bus bus) { this(bus, DebuggerConfig.fromCommandLine()); }
+
+
+
+    /**
+     * Construct the CPU with its own debugging options and attach the memory to it
+     *
+     * @param bus the RAM memory
+     * @param config the debugging options
+     */
+    public Z80(Bus bus, DebuggerConfig config) {
+        this.bus = bus;
+        this.config = config;
+    }
 
 
 
@@ -148,61 +282,129 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
 
 
 
-    private interface RegisterLookup {
-        void setValue(int value);
-        int getValue();
+    /**
+     * Get the value of a register pair.
+     *
+     * @param hi the index of the high register of the pair
+     * @return the 16-bit value of the pair
+     */
+    private int pair(int hi) {
+        return (regs[hi] << 8) | regs[hi + 1];
     }
 
 
 
     /**
-     * We use this lookup table to identify registers based on a predefined
-     * bit pattern and then allow get and set operations on said registers.
-     * The 6th index is not used.
+     * Set the value of a register pair.
      *
-     * <pre>
-     * Possible bit patterns are:
-     * -----------
-     * | A | 111 |
-     * | B | 000 |
-     * | C | 001 |
-     * | D | 010 |
-     * | E | 011 |
-     * | H | 100 |
-     * | L | 101 |
-     * -----------
-     * </pre>
+     * @param hi the index of the high register of the pair
+     * @param value the 16-bit value of the pair
      */
-    private final RegisterLookup[] registerLookup = new RegisterLookup[8];
-
-    {
-        // not included with sample
+    private void pair(int hi, int value) {
+        regs[hi] = (value >>> 8) & 0xff;
+        regs[hi + 1] = value & 0xff;
     }
 
 
 
     /** Reset the CPU to its initial state by setting all registers to zero */
     public void reset() {
-        A = F = A_ = F_ = 0;
-        B = C = B_ = C_ = 0;
-        D = E = D_ = E_ = 0;
-        H = L = H_ = L_ = 0;
-
-        I = 0;
-        R = 0;
+        Arrays.fill(regs, 0);
 
         PC = 0;
         SP = 0;
 
-        IX = IY = 0;
         IRM = InterruptMode.IM0;
 
         halted = false;
+        lazyKind = LAZY_NONE;
+        if (blockCache != null) { blockCache.clear(); }
+        idleHead = -1;
         // TODO analyze what other entities need to be reset here
     }
 
 
 
+    /**
+     * Capture the complete state of the cpu. Nothing is allocated.
+     *
+     * @param state the state to capture into
+     */
+    public void capture(CpuState state) {
+        int[] data = state.data;
+        System.arraycopy(regs, 0, data, 0, REGISTER_COUNT);
+
+        data[CpuState.PC] = PC;
+        data[CpuState.SP] = SP;
+        data[CpuState.BITS] = (IFF1 ? CpuState.IFF1 : 0)
+                | (IFF2 ? CpuState.IFF2 : 0)
+                | (halted ? CpuState.HALTED : 0)
+                | (irqSuspended ? CpuState.IRQ_SUSPENDED : 0)
+                | (nopAfterNoni ? CpuState.NOP_AFTER_NONI : 0)
+                | (busy ? CpuState.BUSY : 0);
+        data[CpuState.IM] = IRM.ordinal();
+        data[CpuState.IRQ] = IRQ.ordinal();
+        data[CpuState.BUSY_CYCLES] = busyCycles;
+        data[CpuState.LAZY_KIND] = lazyKind;
+        data[CpuState.LAZY_INDEX] = lazyIndex;
+        state.setLong(CpuState.CYCLES, cycleCount);
+        state.setLong(CpuState.INSTRUCTIONS, instrCount);
+
+        state.setCaptured();
+    }
+
+
+
+    /**
+     * Take over the complete state of another cpu, for example the one of
+     * the machine this cpu's machine was forked from. Nothing is allocated.
+     * The settings, such as the fast paths, are left as they are.
+     *
+     * @param source the cpu to copy the state of
+     */
+    public void copyState(Z80 source) {
+        source.capture(copyBuffer);
+        restore(copyBuffer);
+    }
+
+
+
+    /**
+     * Restore a previously captured state. Nothing is allocated.
+     * The memory is not part of the cpu state and is left as it is.
+     *
+     * @param state the state to restore
+     */
+    public void restore(CpuState state) {
+        if (!state.isCaptured()) { throw new IllegalArgumentException("Nothing was captured"); }
+
+        int[] data = state.data;
+        System.arraycopy(data, 0, regs, 0, REGISTER_COUNT);
+
+        PC = data[CpuState.PC];
+        SP = data[CpuState.SP];
+
+        int bits = data[CpuState.BITS];
+        IFF1 = (bits & CpuState.IFF1) != 0;
+        IFF2 = (bits & CpuState.IFF2) != 0;
+        halted = (bits & CpuState.HALTED) != 0;
+        irqSuspended = (bits & CpuState.IRQ_SUSPENDED) != 0;
+        nopAfterNoni = (bits & CpuState.NOP_AFTER_NONI) != 0;
+        busy = (bits & CpuState.BUSY) != 0;
+
+        IRM = INTERRUPT_MODES[data[CpuState.IM]];
+        IRQ = INTERRUPT_TYPES[data[CpuState.IRQ]];
+        busyCycles = data[CpuState.BUSY_CYCLES];
+        lazyKind = data[CpuState.LAZY_KIND];
+        lazyIndex = data[CpuState.LAZY_INDEX];
+        cycleCount = state.getLong(CpuState.CYCLES);
+        instrCount = state.getLong(CpuState.INSTRUCTIONS);
+
+        idleHead = -1;
+    }
+
+
+
     @Override
     public int step() {
         // not included with sample
@@ -217,6 +419,62 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
 
 
 
+    /**
+     * Run whole instructions until the cycle count reaches the target.
+     *
+     * <pre>
+     * This is the batch alternative to driving the cpu through {@link #step()}
+     * one clock cycle at a time. Pending interrupts are accepted between the
+     * instructions, just like with the per-cycle stepping. The target also
+     * becomes the next event, see {@link #setNextEvent(long)}, so nothing
+     * runs past it by more than one instruction.
+     *
+     * An instruction left half way by {@link #step()} is completed first.
+     * </pre>
+     *
+     * @param target the cycle count to run to
+     * @return the overshoot, the number of cycles run past the target
+     */
+    public int runUntil(long target) {
+        nextEvent = target;
+
+        if (busy) {
+            cycleCount += busyCycles;
+            busyCycles = 0;
+            busy = false;
+        }
+
+        while (cycleCount < target) {
+            long stop = Math.min(target, nextSample);
+            while (cycleCount < stop) {
+                cycleCount += cycle();
+                instrCount++;   // one per dispatch, the fast paths count the instructions they add
+            }
+
+            if (cycleCount >= nextSample) {
+                sampler.sample(PC, SP);
+                nextSample += sampler.getPeriod();
+            }
+        }
+
+        return (int) (cycleCount - target);
+    }
+
+
+
+    /**
+     * Set the sampling profiler of the guest code.
+     * The samples are only taken while running through {@link #runUntil(long)}.
+     *
+     * @param sampler the profiler, or null to stop sampling
+     */
+    public void setPcSampler(PcSampler sampler) {
+        this.sampler = sampler;
+        nextSample = sampler == null ? Long.MAX_VALUE : cycleCount + sampler.getPeriod();
+    }
+
+
+
 
     private int handleInterrupts() {
         int tStates = 0;
@@ -285,6 +543,70 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
 
 
 
+    /**
+     * Enable or disable the lazy flag evaluation.
+     * Any pending flags are materialized when disabling it.
+     *
+     * @param enabled true to enable the lazy flag evaluation
+     */
+    public void setLazyFlags(boolean enabled) {
+        syncFlags();
+        lazyFlags = enabled;
+    }
+
+
+
+    /**
+     * Materialize the pending lazily evaluated flags, if any, into F.
+     * Must be called before F is read or written from outside the cpu,
+     * for example when saving or loading a snapshot.
+     */
+    public void syncFlags() {
+        if (lazyKind == LAZY_NONE) { return; }
+        regs[REG_F] = pendingFlags();
+        lazyKind = LAZY_NONE;
+    }
+
+
+
+    /**
+     * Compute F with the pending lazily evaluated flags applied, leaving them pending.
+     *
+     * @return the value of F
+     */
+    private int pendingFlags() {
+        switch (lazyKind) {
+            case LAZY_SZP: return (regs[REG_F] & FLAG_XY) | SZP[lazyIndex];
+            case LAZY_SBC: return (regs[REG_F] & FLAG_XY) | (SBC[lazyIndex] & 0xff);
+            default: return regs[REG_F];
+        }
+    }
+
+
+
+    /**
+     * Set S, Z and P/V from the 8-bit result, reset H, N and C.
+     * Used by the logical instructions.
+     */
+    private void flagsSZP(int r) {
+        if (lazyFlags) { lazyKind = LAZY_SZP; lazyIndex = r; return; }
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | SZP[r];
+    }
+
+
+
+    /**
+     * Set all the documented flags for the subtraction a - b - carry.
+     * Used by SUB, SBC and CP.
+     */
+    private void flagsSbc(int a, int b, int carry) {
+        int index = (carry << 16) | (a << 8) | b;
+        if (lazyFlags) { lazyKind = LAZY_SBC; lazyIndex = index; return; }
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (SBC[index] & 0xff);
+    }
+
+
+
     /**
      * Used by peripherals to trigger a NMI.
      */
@@ -304,30 +626,873 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
 
 
     /**
-     * Fetch, decode and execute an instruction.
+     * Fetch, decode and execute an instruction,
+     * or a whole cached block when one starts at PC.
      *
-     * @return the number of T-states for the executed instruction
+     * @return the number of T-states for the executed instruction or block
      */
     private int fdeInstruction() {
         int tStates = 0;
-        int refresh = 0;
+
+        if (blockCache != null) {
+            BlockCache.Block block = blockCache.lookup(PC);
+            if (block != null) { return runBlock(block); }
+        }
 
         int pc = PC;
-        // not included with sample
+        int decoded = decode(pc);
+        int key = decoded & 0xfff;
+        int length = decoded >>> 12;
+        int table = key >>> 8;
+        int opcode = key & 0xff;
+
+        Instruction instr = getInstruction(table, opcode);
+        if (instr == null) { return invalidInstruction(table, opcode); }
+
+        // a fused sequence starting here runs through its own handler instead
+        Fusion.Sequence fused = null;
+        if (fusion != null) {
+            fusion.dispatched();
+            if (table == BASE) {
+                int index = matchFused(pc, opcode);
+                if (index >= 0) {
+                    instr = fusedHandlers[opcode][index];
+                    fused = fusion.startingWith(opcode)[index];
+                }
+            }
+        }
+
+        if (trace != null) { trace(pc, cycleCount); }
+
+        PC(pc + length);
+        regs[REG_R] = (regs[REG_R] & 0x80) | ((regs[REG_R] + length) & 0x7f);
+
+        if (lazyKind != LAZY_NONE && !LAZY_SAFE[key]) { syncFlags(); }
+
+        elapsed = 0;
+        tStates += instr.exec(opcode);
+
+        // fused sequences are neither recorded into blocks nor part of idle loops
+        if (fused != null) {
+            idleHead = -1;
+            if (blockCache != null) { blockCache.skipped(PC, ENDS_BLOCK[key(BASE, fused.opcodes[fused.opcodes.length - 1])]); }
+            return tStates;
+        }
+        if (HISTOGRAM) { histogram.count(key, tStates); }
+
+        if (blockCache != null) { blockCache.executed(pc, key, instr, length, PC); }
+        if (idleSkipping) { tStates += watchIdle(pc, key, tStates); }
+
+        return tStates;
+    }
+
+
+
+    /**
+     * Find the fused sequence starting at the specified address.
+     *
+     * <pre>
+     * The sequence is only taken when it can run whole: no interrupt is pending,
+     * so none has to be taken between its instructions, and its last instruction
+     * starts before the next scheduled event.
+     * </pre>
+     *
+     * @param pc the address of the first instruction
+     * @param opcode the first opcode
+     * @return the index of the sequence among the ones starting with the opcode, -1 if none
+     */
+    private int matchFused(int pc, int opcode) {
+        Fusion.Sequence[] sequences = fusion.startingWith(opcode);
+        if (sequences == null || IRQ != InterruptType.NIL) { return -1; }
+
+        for (int s = 0; s < sequences.length; s++) {
+            Fusion.Sequence sequence = sequences[s];
+            if (cycleCount + sequence.prefixTStates < nextEvent && followedBy((pc + 1) & 0xffff, sequence.opcodes, 1)) { return s; }
+        }
+        return -1;
+    }
+
+
+
+    /**
+     * @param pc the address to compare from
+     * @param opcodes the opcodes of a sequence
+     * @param from the index of the opcode expected at the address
+     * @return true if the single byte opcodes from the index on are in memory from the address on
+     */
+    private boolean followedBy(int pc, int[] opcodes, int from) {
+        for (int i = from; i < opcodes.length; i++) {
+            if (readByte((pc + i - from) & 0xffff) != opcodes[i]) { return false; }
+        }
+        return true;
+    }
+
+
+
+    /**
+     * Build the handler of a fused sequence.
+     *
+     * <pre>
+     * The handler is dispatched like the first instruction of the sequence,
+     * once PC and R went past its opcode. It runs the instruction handlers
+     * back to back, advancing PC and R by one between them, and returns the
+     * precomputed T-states of all the instructions but the last one plus
+     * the ones of the last.
+     *
+     * An instruction writing to memory may overwrite any of the opcodes still
+     * to run, PUSH HL as the first of three may hit the third one. All of them
+     * are compared again after such an instruction. The sequence is then broken off, leaving the rest to the interpreter.
+     * The caller counts the dispatch as one instruction, the others are counted here.
+     * </pre>
+     *
+     * @param sequence the sequence
+     * @return the handler
+     */
+    private Instruction fuse(Fusion.Sequence sequence) {
+        int[] opcodes = sequence.opcodes;
+        int last = opcodes.length - 1;
+
+        int[] keys = new int[opcodes.length];
+        Instruction[] parts = new Instruction[opcodes.length];
+        for (int i = 0; i <= last; i++) {
+            keys[i] = key(BASE, opcodes[i]);
+            parts[i] = getInstruction(BASE, opcodes[i]);
+        }
+
+        return (op) -> {
+            int tStates = 0;
+
+            for (int i = 0; i < last; i++) {
+                if (i > 0) { fetchFused(keys[i], tStates); }
+                parts[i].exec(opcodes[i]);
+                tStates += sequence.tStates[i];
+                if (HISTOGRAM) { histogram.count(keys[i], sequence.tStates[i]); }
+
+                if (sequence.writesMemory[i] && !followedBy(PC, opcodes, i + 1)) {
+                    instrCount += i;
+                    return tStates;
+                }
+            }
+
+            fetchFused(keys[last], tStates);
+            int t = parts[last].exec(opcodes[last]);
+            if (HISTOGRAM) { histogram.count(keys[last], t); }
+
+            sequence.hits++;
+            instrCount += last;
+            return tStates + t;
+        };
+    }
+
+
+
+    /**
+     * Move PC and R past the next single byte opcode of a fused sequence,
+     * and account for the T-states the sequence has run so far.
+     *
+     * @param key the dense key of the instruction
+     * @param tStates the T-states of the sequence so far
+     */
+    private void fetchFused(int key, int tStates) {
+        int pc = PC;
+        if (trace != null) { trace(pc, cycleCount + tStates); }
+
+        PC(pc + 1);
+        regs[REG_R] = (regs[REG_R] & 0x80) | ((regs[REG_R] + 1) & 0x7f);
+
+        if (lazyKind != LAZY_NONE && !LAZY_SAFE[key]) { syncFlags(); }
+        elapsed = tStates;
+    }
+
+
+
+    /**
+     * Decode the instruction at the specified address, without executing it.
+     *
+     * <pre>
+     * The result packs the dense key of the instruction together with
+     * the number of prefix and opcode bytes, which is also the number
+     * of M1 cycles incrementing R.
+     *
+     * .---------------------------------.
+     * | bits    | meaning               |
+     * |---------------------------------|
+     * | 0 - 7   | opcode                |
+     * | 8 - 11  | decode table          |
+     * | 12 - 13 | prefix + opcode bytes |
+     * `---------------------------------'
+     * </pre>
+     *
+     * @param pc the address of the instruction
+     * @return the packed key and length
+     */
+    private int decode(int pc) {
+        int length = 1;
+
+        int opcode = readByte(pc);
+        int table = BASE;
 
         switch (opcode) { // fetch and decode opcode
-            // not included with sample
+            case 0xCB: {
+                table = CB;
+                opcode = readByte(pc + 1); length++;
+                break;
+            }
+            case 0xED: {
+                table = ED;
+                opcode = readByte(pc + 1); length++;
+                break;
+            }
+            case 0xDD:
+            case 0xFD: {
+                table = (opcode == 0xDD) ? DD : FD;
+                opcode = readByte(pc + 1); length++;
+
+                if (opcode == 0xCB) {
+                    // DDCB d op / FDCB d op: the displacement comes before the opcode.
+                    // pc is left pointing at the displacement, the instruction
+                    // itself skips over both the displacement and the opcode.
+                    table = (table == DD) ? DDCB : FDCB;
+                    opcode = readByte(pc + 3);
+                }
+                break;
             }
         }
 
-        Instruction instr = getInstruction(opcode);
-        // not included with sample
+        return key(table, opcode) | (length << 12);
+    }
+
+
 
+    /**
+     * Execute a cached block.
+     *
+     * <pre>
+     * The recorded handlers run back to back, without fetching or decoding.
+     * The first instruction always runs, the block is left before any other when:
+     *  - the previous instruction did not fall through to the recorded next address,
+     *  - an instruction wrote over the code the block was recorded from,
+     *  - an interrupt is pending, so it is taken between the two instructions,
+     *  - the next instruction could run past the next scheduled event.
+     * The rest of the block is then simply skipped, the interpreter
+     * picks up from the current PC.
+     *
+     * A compiled segment (see {@link BlockCompiler}) runs whole when its last
+     * instruction starts before the next event, and instruction by instruction
+     * otherwise. Its instructions neither touch the ports nor the interrupt
+     * state, so no interrupt can get pending in between. They are interpreted
+     * as well while tracing or counting the instructions, which look at every one.
+     *
+     * The caller counts the dispatch as one instruction, the others are counted here.
+     * </pre>
+     *
+     * @param block the block starting at PC
+     * @return the number of T-states for the executed instructions
+     */
+    private int runBlock(BlockCache.Block block) {
+        int tStates = 0;
+        long budget = nextEvent - cycleCount;
+
+        int i = 0;
+        while (i < block.count) {
+            int pc = block.pcs[i];
+            if (i > 0 && (PC != pc || !block.valid || IRQ != InterruptType.NIL || tStates >= budget)) { break; }
+
+            BlockCompiler.Segment segment = block.segments == null ? null : block.segments[i];
+            if (segment != null && trace == null && !HISTOGRAM && tStates + segment.leadTStates < budget) {
+                if (lazyKind != LAZY_NONE) { syncFlags(); }
+                segment.code.run(regs);
+
+                // one opcode byte, so one refresh, per instruction
+                PC(segment.next);
+                regs[REG_R] = (regs[REG_R] & 0x80) | ((regs[REG_R] + segment.count) & 0x7f);
+                tStates += segment.tStates;
+
+                // none is a branch or has side effects, see watchIdle
+                if (idleSkipping) {
+                    idleLength += segment.count;
+                    if (idleLength > MAX_IDLE_LOOP_LENGTH) { idleHead = -1; }
+                }
+
+                i += segment.count;
+                continue;
+            }
+
+            int key = block.keys[i];
+            int length = block.lengths[i];
+            if (trace != null) { trace(pc, cycleCount + tStates); }
+
+            PC(pc + length);
+            regs[REG_R] = (regs[REG_R] & 0x80) | ((regs[REG_R] + length) & 0x7f);
+
+            if (lazyKind != LAZY_NONE && !LAZY_SAFE[key]) { syncFlags(); }
+
+            elapsed = tStates;
+            int t = block.instrs[i].exec(key & 0xff);
+            if (HISTOGRAM) { histogram.count(key, t); }
+            tStates += t;
+
+            if (idleSkipping) { tStates += watchIdle(pc, key, tStates); }
+            i++;
+        }
+
+        instrCount += i - 1;
+        blockCache.skipped(PC, ENDS_BLOCK[block.keys[i - 1]]);
         return tStates;
     }
 
 
 
+    /**
+     * Enable or disable the decode cache of basic blocks.
+     * See {@link BlockCache} for how the blocks are found and recorded.
+     *
+     * @param enabled true to cache the decoded hot code
+     */
+    public void setBlockCaching(boolean enabled) {
+        if (blockCache != null) { blockCache.detach(); }
+        blockCache = enabled ? new BlockCache(bus.getMemoryDevice()) : null;
+        if (blockCache != null && blockCompilation) { blockCache.setCompiler(new BlockCompiler()); }
+    }
+
+
+
+    /**
+     * Enable or disable the compilation of the straight runs of register only
+     * instructions of the cached blocks into JVM classes, see {@link BlockCompiler}.
+     * Enabled by default, only has an effect while the blocks are cached.
+     *
+     * @param enabled true to compile the cached blocks
+     */
+    public void setBlockCompilation(boolean enabled) {
+        blockCompilation = enabled;
+        if (blockCache != null) { blockCache.setCompiler(enabled ? new BlockCompiler() : null); }
+    }
+
+
+
+    /**
+     * Set the fused instruction sequences to run as single dispatches.
+     * One handler is built per sequence, out of the current base instruction
+     * handlers, so this has to be called again after replacing any of those.
+     *
+     * @param fusion the sequences, or null to disable the fusion
+     */
+    public void setFusion(Fusion fusion) {
+        this.fusion = fusion;
+        fusedHandlers = null;
+
+        if (fusion != null) {
+            fusedHandlers = new Instruction[256][];
+            for (int op = 0; op < 256; op++) {
+                Fusion.Sequence[] sequences = fusion.startingWith(op);
+                if (sequences == null) { continue; }
+
+                fusedHandlers[op] = new Instruction[sequences.length];
+                for (int s = 0; s < sequences.length; s++) {
+                    fusedHandlers[op][s] = fuse(sequences[s]);
+                }
+            }
+        }
+        invalidateBlocks();
+    }
+
+
+
+    /**
+     * Drop all the cached blocks.
+     * Must be called after memory was written without going through the bus,
+     * and whenever an instruction handler gets replaced.
+     */
+    public void invalidateBlocks() {
+        if (blockCache != null) { blockCache.clear(); }
+    }
+
+
+
+    /**
+     * Set the cycle of the next event the cpu must not run past,
+     * like the next interrupt or the next sample of a peripheral.
+     * A cached block is left before crossing it, and a HALT
+     * fast forwards right up to it.
+     *
+     * @param cycle the cycle count of the next event
+     */
+    public void setNextEvent(long cycle) {
+        nextEvent = cycle;
+    }
+
+
+
+    /**
+     * Get the cycle count the executing instruction started at, for the
+     * peripherals timing their accesses. The total cycle count only advances
+     * once a whole dispatch is done, see {@link #getCycleCount()}.
+     * Only meaningful while an instruction executes.
+     *
+     * @return the start of the executing instruction
+     */
+    public long getInstructionCycle() {
+        return cycleCount + elapsed;
+    }
+
+
+
+    /**
+     * @return the total number of cycles executed
+     */
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+
+
+    /**
+     * @return the total number of instructions executed
+     */
+    public long getInstructionCount() {
+        return instrCount;
+    }
+
+
+
+    /**
+     * Watch for idle loops and skip them up to the next scheduled event.
+     *
+     * <pre>
+     * Called after every executed instruction. A short backward branch marks
+     * the head of a loop candidate, and the state of the cpu is saved there.
+     * The candidate is dropped as soon as an instruction with side effects
+     * runs (see {@link InstructionSet#NO_SIDE_EFFECTS}).
+     *
+     * When the same branch gets back to the same head with the same registers,
+     * SP and pending flags, the iteration neither changed anything nor depends
+     * on anything that changed. Every following iteration will do exactly the
+     * same until an interrupt, so the whole iterations that fit before the next
+     * event are skipped at once. Only the cycle count and R advance.
+     *
+     * The memory read by the loop can only change through the cpu. The input
+     * ports can change at any time, so the instructions reading them are
+     * side effects as well: a loop polling the keyboard or the tape is never
+     * skipped.
+     * </pre>
+     *
+     * @param pc the address of the executed instruction
+     * @param key the dense key of the executed instruction
+     * @param tStates the T-states of the current dispatch so far
+     * @return the number of T-states skipped
+     */
+    private int watchIdle(int pc, int key, int tStates) {
+        if (!NO_SIDE_EFFECTS[key] || ++idleLength > MAX_IDLE_LOOP_LENGTH) { idleHead = -1; }
+        if (!NO_SIDE_EFFECTS[key] || PC >= pc || pc - PC > MAX_IDLE_LOOP_SPAN) { return 0; }
+
+        long now = cycleCount + tStates;
+
+        if (idleHead == PC && idleBranch == pc && idleSP == SP && IRQ == InterruptType.NIL
+                && nextEvent != Long.MAX_VALUE && sameRegisters()) {
+            long period = now - idleStart;
+            long iterations = Math.min((nextEvent - now) / period, MAX_SKIPPED_CYCLES / period);
+
+            if (iterations > 0) {
+                instrCount += iterations * idleLength;
+                int refresh = (regs[REG_R] - idleRegs[REG_R]) & 0x7f;
+                regs[REG_R] = (regs[REG_R] & 0x80) | ((int) (regs[REG_R] + iterations * refresh) & 0x7f);
+
+                int skipped = (int) (iterations * period);
+                idleCyclesSkipped += skipped;
+                idleHead = -1;
+                return skipped;
+            }
+        }
+
+        // a new candidate, or a new starting point for the same one
+        idleHead = PC;
+        idleBranch = pc;
+        idleLength = 0;
+        idleStart = now;
+        idleSP = SP;
+        if (lazyKind != LAZY_NONE) { syncFlags(); }
+        System.arraycopy(regs, 0, idleRegs, 0, REGISTER_COUNT);
+        return 0;
+    }
+
+
+
+    /**
+     * Compare the registers against the ones saved at the head of the idle loop candidate.
+     * R is left out, it always advances.
+     */
+    private boolean sameRegisters() {
+        if (lazyKind != LAZY_NONE) { syncFlags(); }
+        for (int i = 0; i < REGISTER_COUNT; i++) {
+            if (i != REG_R && regs[i] != idleRegs[i]) { return false; }
+        }
+        return true;
+    }
+
+
+
+    /**
+     * Enable or disable the detection and skipping of idle loops.
+     * Only has an effect while the next event is known, see {@link #setNextEvent(long)}.
+     *
+     * @param enabled true to skip the idle loops
+     */
+    public void setIdleLoopSkipping(boolean enabled) {
+        idleSkipping = enabled;
+        idleHead = -1;
+    }
+
+
+
+    /**
+     * Enable or disable doing all the NOPs of a HALT up to the next event at once.
+     * Only has an effect while the next event is known, see {@link #setNextEvent(long)}.
+     *
+     * @param enabled true to skip the halted cycles
+     */
+    public void setHaltSkipping(boolean enabled) {
+        haltSkipping = enabled;
+    }
+
+
+
+    /**
+     * @return the total number of cycles skipped in idle loops
+     */
+    public long getIdleCyclesSkipped() {
+        return idleCyclesSkipped;
+    }
+
+
+
+    /**
+     * Enable or disable the bulk execution of the repeating block instructions:
+     * LDIR, LDDR, CPIR, CPDR, INIR, INDR, OTIR and OTDR.
+     *
+     * <pre>
+     * When enabled, a block instruction keeps repeating within a single dispatch
+     * for as long as no interrupt is pending and the next scheduled event
+     * (see {@link #setNextEvent(long)}) is not due. Registers, flags, R and the
+     * T-states end up exactly as if every repetition had been dispatched.
+     * Memory and ports are still accessed one byte at a time through the bus,
+     * so ROM protection and the screen memory side effects are honored.
+     * </pre>
+     *
+     * @param enabled true to run the block instructions in bulk
+     */
+    public void setBulkBlockInstructions(boolean enabled) {
+        int[] opcodes = { 0xB0, 0xB8, 0xB1, 0xB9, 0xB2, 0xBA, 0xB3, 0xBB };
+
+        if (enabled && iteratedBlockInstructions == null) {
+            Instruction[] bulk = {
+                    (op) -> LDxR_bulk(1), (op) -> LDxR_bulk(-1),
+                    (op) -> CPxR_bulk(1), (op) -> CPxR_bulk(-1),
+                    (op) -> INxR_bulk(1), (op) -> INxR_bulk(-1),
+                    (op) -> OTxR_bulk(1), (op) -> OTxR_bulk(-1)
+            };
+            iteratedBlockInstructions = new Instruction[opcodes.length];
+            for (int i = 0; i < opcodes.length; i++) {
+                iteratedBlockInstructions[i] = setInstruction(ED, opcodes[i], bulk[i]);
+            }
+        } else if (!enabled && iteratedBlockInstructions != null) {
+            for (int i = 0; i < opcodes.length; i++) {
+                setInstruction(ED, opcodes[i], iteratedBlockInstructions[i]);
+            }
+            iteratedBlockInstructions = null;
+        }
+        // the cached blocks hold on to the replaced handlers
+        invalidateBlocks();
+    }
+
+
+
+    /**
+     * Decide whether a block instruction can repeat within the current dispatch.
+     *
+     * @param tStates the T-states spent by the repetitions done so far
+     * @param written the last memory address written to, -1 if none
+     * @return true if the next repetition may run right away
+     */
+    private boolean canRepeat(int tStates, int written) {
+        // the instruction overwriting itself has to be fetched again
+        int pc = (PC - 2) & 0xffff;
+        if (written == pc || written == ((pc + 1) & 0xffff)) { return false; }
+
+        return IRQ == InterruptType.NIL && cycleCount + elapsed + tStates < nextEvent;
+    }
+
+
+
+    /**
+     * Finish a bulk block instruction: rewind PC if the instruction still repeats
+     * and account for the M1 cycles and the instruction count of the repetitions
+     * run after the first one.
+     */
+    private void endBulk(boolean repeat, int repetitions) {
+        if (repeat) { PC(PC - 2); }
+        instrCount += repetitions - 1;
+        regs[REG_R] = (regs[REG_R] & 0x80) | ((regs[REG_R] + 2 * (repetitions - 1)) & 0x7f);
+    }
+
+
+
+    /**
+     * LDIR / LDDR in bulk.
+     *
+     * <pre>
+     * (DE) <- (HL), DE <- DE +/- 1, HL <- HL +/- 1, BC <- BC - 1, until BC == 0
+     *
+     * Each repetition redefines H, P/V and N, so only the last one needs computing:
+     * P/V is set if BC != 0, H and N are reset, S, Z and C are not affected.
+     * The undocumented X and Y flags are preserved, like the iterated handlers do.
+     * </pre>
+     *
+     * @param step 1 for LDIR, -1 for LDDR
+     */
+    private int LDxR_bulk(int step) {
+        // | M-cycle | 5   |   BC != 0   |
+        // | T-cycle | 21  |             |
+        // | M-cycle | 4   |   BC == 0   |
+        // | T-cycle | 16  |             |
+        int bc = pair(REG_B), de = pair(REG_D), hl = pair(REG_H);
+
+        int tStates = 0;
+        int repetitions = 0;
+        int data;
+        int written;
+
+        do {
+            data = readByte(hl);
+            writeByte(de, data);
+            written = de;
+
+            hl = (hl + step) & 0xffff;
+            de = (de + step) & 0xffff;
+            bc = (bc - 1) & 0xffff;
+
+            tStates += (bc != 0) ? 21 : 16;
+            repetitions++;
+        } while (bc != 0 && canRepeat(tStates, written));
+
+        pair(REG_B, bc); pair(REG_D, de); pair(REG_H, hl);
+
+        regs[REG_F] = (regs[REG_F] & (FLAG_S | FLAG_Z | FLAG_C | FLAG_XY)) | (bc != 0 ? FLAG_P : 0);
+
+        endBulk(bc != 0, repetitions);
+        return tStates;
+    }
+
+
+
+    /**
+     * CPIR / CPDR in bulk.
+     *
+     * <pre>
+     * A - (HL), HL <- HL +/- 1, BC <- BC - 1, until BC == 0 or A == (HL)
+     *
+     * S, Z and H are set as for A - (HL), N is set, C is not affected,
+     * P/V is set if BC != 0.
+     * The undocumented X and Y flags are preserved, like the iterated handlers do.
+     * </pre>
+     *
+     * @param step 1 for CPIR, -1 for CPDR
+     */
+    private int CPxR_bulk(int step) {
+        // | M-cycle | 5   | BC != 0 and A != (HL) |
+        // | T-cycle | 21  |                       |
+        // | M-cycle | 4   | BC == 0 or A == (HL)  |
+        // | T-cycle | 16  |                       |
+        int a = regs[REG_A];
+        int bc = pair(REG_B), hl = pair(REG_H);
+
+        int tStates = 0;
+        int repetitions = 0;
+        int data;
+        boolean repeat;
+
+        do {
+            data = readByte(hl);
+
+            hl = (hl + step) & 0xffff;
+            bc = (bc - 1) & 0xffff;
+
+            repeat = bc != 0 && a != data;
+            tStates += repeat ? 21 : 16;
+            repetitions++;
+        } while (repeat && canRepeat(tStates, -1));
+
+        pair(REG_B, bc); pair(REG_H, hl);
+
+        int flags = SBC[(a << 8) | data] & (FLAG_S | FLAG_Z | FLAG_H);
+        regs[REG_F] = (regs[REG_F] & (FLAG_C | FLAG_XY)) | flags | FLAG_N | (bc != 0 ? FLAG_P : 0);
+
+        endBulk(repeat, repetitions);
+        return tStates;
+    }
+
+
+
+    /**
+     * INIR / INDR in bulk.
+     *
+     * <pre>
+     * (HL) <- (C), B <- B - 1, HL <- HL +/- 1, until B == 0
+     *
+     * Flags as for {@link #INDR()}: Z and N are set.
+     * </pre>
+     *
+     * @param step 1 for INIR, -1 for INDR
+     */
+    private int INxR_bulk(int step) {
+        // | M-cycle | 5   |   B != 0   |
+        // | T-cycle | 21  |            |
+        // | M-cycle | 4   |   B == 0   |
+        // | T-cycle | 16  |            |
+        int b = regs[REG_B], c = regs[REG_C], hl = pair(REG_H);
+
+        int tStates = 0;
+        int repetitions = 0;
+        int written;
+
+        do {
+            int data = ioReadByte((b << 8) | c);
+            writeByte(hl, data);
+            written = hl;
+
+            b = (b - 1) & 0xff;
+            hl = (hl + step) & 0xffff;
+
+            tStates += (b != 0) ? 21 : 16;
+            repetitions++;
+        } while (b != 0 && canRepeat(tStates, written));
+
+        regs[REG_B] = b; pair(REG_H, hl);
+        regs[REG_F] |= FLAG_Z | FLAG_N;
+
+        endBulk(b != 0, repetitions);
+        return tStates;
+    }
+
+
+
+    /**
+     * OTIR / OTDR in bulk.
+     *
+     * <pre>
+     * (C) <- (HL), B <- B - 1, HL <- HL +/- 1, until B == 0
+     *
+     * Flags as for {@link #OTIR()}: Z and N are set.
+     * </pre>
+     *
+     * @param step 1 for OTIR, -1 for OTDR
+     */
+    private int OTxR_bulk(int step) {
+        // | M-cycle | 5   |   B != 0   |
+        // | T-cycle | 21  |            |
+        // | M-cycle | 4   |   B == 0   |
+        // | T-cycle | 16  |            |
+        int b = regs[REG_B], c = regs[REG_C], hl = pair(REG_H);
+
+        int tStates = 0;
+        int repetitions = 0;
+
+        do {
+            int data = readByte(hl);
+            b = (b - 1) & 0xff;
+            ioWriteByte((b << 8) | c, data);
+
+            hl = (hl + step) & 0xffff;
+
+            tStates += (b != 0) ? 21 : 16;
+            repetitions++;
+        } while (b != 0 && canRepeat(tStates, -1));
+
+        regs[REG_B] = b; pair(REG_H, hl);
+        regs[REG_F] |= FLAG_Z | FLAG_N;
+
+        endBulk(b != 0, repetitions);
+        return tStates;
+    }
+
+
+
+    /**
+     * Record the instruction about to be executed into the trace.
+     *
+     * @param pc the address of the instruction
+     * @param cycles the cycle count the instruction starts at
+     */
+    private void trace(int pc, long cycles) {
+        // the pending flags are only computed, settling them would hide the lazy path from the trace
+        int flags = pendingFlags();
+
+        int bytes = readByte(pc)
+                | (readByte((pc + 1) & 0xffff) << 8)
+                | (readByte((pc + 2) & 0xffff) << 16)
+                | (readByte((pc + 3) & 0xffff) << 24);
+
+        trace.record(pc, bytes,
+                (regs[REG_A] << 24) | (flags << 16) | pair(REG_B),
+                (pair(REG_D) << 16) | pair(REG_H),
+                (pair(REG_IXH) << 16) | pair(REG_IYH),
+                SP, cycles);
+    }
+
+
+
+    /**
+     * @return the per instruction counters, null unless enabled with -Dhistogram
+     */
+    public OpcodeHistogram getHistogram() {
+        return histogram;
+    }
+
+
+
+    /**
+     * Set the recorder of the executed instructions.
+     *
+     * @param trace the recorder, or null to stop recording
+     */
+    public void setTraceRecorder(TraceRecorder trace) {
+        this.trace = trace;
+    }
+
+
+
+    /**
+     * Handle a hole in the decode tables.
+     *
+     * <pre>
+     * A DD or FD prefix that is not followed by an index register instruction
+     * is ignored. It behaves like a NOP and the next byte is decoded again,
+     * as a new instruction. Any other invalid opcode behaves like a NOP
+     * spanning both the prefix and the opcode.
+     * </pre>
+     *
+     * @param table the decode table
+     * @param opcode the opcode not found in the decode table
+     * @return the number of T-states for the executed NOP
+     */
+    private int invalidInstruction(int table, int opcode) {
+        if (config.isDebugMode()) {
+            System.out.printf("Invalid opcode %02X in table %d at %04X%n", opcode, table, PC);
+        }
+
+        if (table == DD || table == FD) {
+            PC(PC + 1);
+            regs[REG_R] = (regs[REG_R] & 0x80) | ((regs[REG_R] + 1) & 0x7f);
+            return 4;
+        }
+
+        PC(PC + 2);
+        regs[REG_R] = (regs[REG_R] & 0x80) | ((regs[REG_R] + 2) & 0x7f);
+        return 8;
+    }
+
+
+
     // ************************************************************************************************ //
     //                                                                                                  //
     //                              THE Z80 INSTRUCTION SET IMPLEMENTATION                              //
@@ -357,7 +1522,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | 1 |
         // | T-cycle | 4 |
         // ---------------
-        FH(false); FN(false); FC(true);
+        regs[REG_F] = (regs[REG_F] & (FLAG_S | FLAG_Z | FLAG_XY | FLAG_P)) | FLAG_C;
         return 4;
     }
 
@@ -389,6 +1554,10 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
      * refresh logic.
      *
      * Note: The HALT instruction is repeated [...]. See pages 28 and 29 of the official manual.
+     *
+     * Nothing but R changes while halted, so when enabled with {@link #setHaltSkipping(boolean)},
+     * the next event is known and no interrupt is pending, all the NOPs up to the event are done at once. The count is the one the
+     * repeated HALT would get to: the first whose 4 T-states reach the event.
      * </pre>
      */
     @Override
@@ -400,7 +1569,17 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | T-cycle | 4 |
         // ---------------
         halted = true; PC(PC - 1);
-        return 4;
+
+        if (!haltSkipping || nextEvent == Long.MAX_VALUE || IRQ != InterruptType.NIL) { return 4; }
+
+        // inside a block, cycleCount is still the time the dispatch started
+        long remaining = nextEvent - (cycleCount + elapsed);
+        int nops = (int) Math.min(Math.max(1, (remaining + 3) / 4), MAX_SKIPPED_CYCLES / 4);
+
+        // the first NOP was counted when the HALT got dispatched
+        regs[REG_R] = (regs[REG_R] & 0x80) | ((regs[REG_R] + nops - 1) & 0x7f);
+        instrCount += nops - 1;
+        return 4 * nops;
     }
 
 
@@ -571,15 +1750,10 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | 1  |
         // | T-cycle | 4  |
         // ----------------
-        int a = A;
-
-        int cf = FC();
-        int b0 = a & 0x1;
+        int t = RR[((regs[REG_F] & FLAG_C) << 8) | regs[REG_A]];
+        regs[REG_A] = t >>> 8;
 
-        a = ((a >>> 1) | (cf << 7)) & 0xff;
-        A(a);
-
-        FH(false); FN(false); FC(b0 == 1);
+        regs[REG_F] = (regs[REG_F] & (FLAG_S | FLAG_Z | FLAG_XY | FLAG_P)) | (t & FLAG_C);
         return 4;
     }
 
@@ -612,8 +1786,8 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | 5  |
         // | T-cycle | 18 |
         // ----------------
-        int a = A;
-        int m = readByte(HL());
+        int a = regs[REG_A];
+        int m = readByte(pair(REG_H));
 
         int ah = (a >> 4) & 0x0f;
         int al = a & 0x0f;
@@ -624,11 +1798,10 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         a = (ah << 4) | mh;
         m = (ml << 4) | al;
 
-        A(a);
-        writeByte(HL(), m);
+        regs[REG_A] = a;
+        writeByte(pair(REG_H), m);
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false);
+        regs[REG_F] = (regs[REG_F] & (FLAG_XY | FLAG_C)) | SZP[a];
 
         return 18;
     }
@@ -662,8 +1835,8 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | 5  |
         // | T-cycle | 18 |
         // ----------------
-        int a = A;
-        int m = readByte(HL());
+        int a = regs[REG_A];
+        int m = readByte(pair(REG_H));
 
         int ah = (a >> 4) & 0x0f;
         int al = a & 0x0f;
@@ -674,11 +1847,10 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         a = (ah << 4) | ml;
         m = (al << 4) | mh;
 
-        A(a);
-        writeByte(HL(), m);
+        regs[REG_A] = a;
+        writeByte(pair(REG_H), m);
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false);
+        regs[REG_F] = (regs[REG_F] & (FLAG_XY | FLAG_C)) | SZP[a];
 
         return 18;
     }
@@ -737,16 +1909,11 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | T-cycle | 8 |
         // ---------------
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-
-        int a = reg.getValue();
-        int b7 = (a >>> 7) & 0x1;
 
-        a = rotateLeft(a) & 0xff;
-        reg.setValue(a);
+        int t = RLC[regs[src]];
+        regs[src] = t >>> 8;
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b7 == 1);
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
         return 8;
     }
@@ -804,16 +1971,11 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | T-cycle | 8 |
         // ---------------
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
 
-        int a = reg.getValue();
-        int b7 = (a >>> 7) & 0x1;
+        int t = SLA[regs[src]];
+        regs[src] = t >>> 8;
 
-        a = (a << 1) & 0xff;
-        reg.setValue(a);
-
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b7 == 1);
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
         return 8;
     }
@@ -849,12 +2011,11 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
 
         int bit = (opcode >> 3) & 0x07;
 
-        int a = readByte(IX + d);
-        int b = (a >>> bit) & 0x1;
+        int a = readByte(pair(REG_IXH) + d);
 
-        FZ(b == 0);
-        FS(b == 1 && bit == 7);
-        FH(true); FP(b == 0); FN(false);
+        // testing a single bit: the masked value is either zero (Z and P set)
+        // or a single set bit, which is negative (S set) only for bit 7.
+        regs[REG_F] = (regs[REG_F] & (FLAG_XY | FLAG_C)) | SZP[a & (0x1 << bit)] | FLAG_H;
 
         return 20;
     }
@@ -890,12 +2051,9 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
 
         int bit = (opcode >> 3) & 0x07;
 
-        int a = readByte(IY + d);
-        int b = (a >>> bit) & 0x1;
+        int a = readByte(pair(REG_IYH) + d);
 
-        FZ(b == 0);
-        FS(b == 1 && bit == 7);
-        FH(true); FP(b == 0); FN(false);
+        regs[REG_F] = (regs[REG_F] & (FLAG_XY | FLAG_C)) | SZP[a & (0x1 << bit)] | FLAG_H;
 
         return 20;
     }
@@ -954,13 +2112,12 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // ----------------
         int dst = (opcode >> 3) & 0x07;
 
-        int addr = BC();
+        int addr = pair(REG_B);
         int data = ioReadByte(addr);
 
-        registerLookup[dst].setValue(data);
+        if (dst != REG_F) { regs[dst] = data; }   // IN F,(C) only sets the flags
 
-        FS(data > 0x7f); FZ(data == 0);
-        FH(false); FP(isParityEven(data)); FN(false);
+        regs[REG_F] = (regs[REG_F] & (FLAG_XY | FLAG_C)) | SZP[data];
 
         return 12;
     }
@@ -999,14 +2156,14 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | 4  |
         // | T-cycle | 16 |
         // ----------------
-        int addr = BC();
+        int addr = pair(REG_B);
         int data = ioReadByte(addr);
-        writeByte(HL(), data);
+        writeByte(pair(REG_H), data);
 
-        B(B - 1);
-        HL(HL() - 1);
+        regs[REG_B] = (regs[REG_B] - 1) & 0xff;
+        pair(REG_H, pair(REG_H) - 1);
 
-        FZ(B() == 0); FN(true);
+        regs[REG_F] = (regs[REG_F] & ~FLAG_Z) | (regs[REG_B] == 0 ? FLAG_Z : 0) | FLAG_N;
         return 16;
     }
 
@@ -1051,16 +2208,16 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | 4   |   B == 0   |
         // | T-cycle | 16  |            |
         // ------------------------------
-        int addr = BC();
+        int addr = pair(REG_B);
         int data = ioReadByte(addr);
-        writeByte(HL(), data);
+        writeByte(pair(REG_H), data);
 
-        B(B - 1);
-        HL(HL() - 1);
+        regs[REG_B] = (regs[REG_B] - 1) & 0xff;
+        pair(REG_H, pair(REG_H) - 1);
 
-        FZ(true); FN(true);
+        regs[REG_F] |= FLAG_Z | FLAG_N;
 
-        if (B() != 0) { PC(PC - 2); return 21; } // repeat instruction
+        if (regs[REG_B] != 0) { PC(PC - 2); return 21; } // repeat instruction
         return 16;
     }
 
@@ -1088,10 +2245,10 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | T-cycle | 11 |
         // '--------------'
         int lo = readByte(PC); PC(PC + 1);
-        int hi = A;
+        int hi = regs[REG_A];
 
         int address = (hi << 8) | lo;
-        ioWriteByte(address, A);
+        ioWriteByte(address, regs[REG_A]);
 
         return 11;
     }
@@ -1137,16 +2294,16 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | 4   |   B == 0   |
         // | T-cycle | 16  |            |
         // ------------------------------
-        int data = readByte(HL());
-        B(B - 1);
-        int addr = BC();
+        int data = readByte(pair(REG_H));
+        regs[REG_B] = (regs[REG_B] - 1) & 0xff;
+        int addr = pair(REG_B);
         ioWriteByte(addr, data);
 
-        HL(HL() + 1);
+        pair(REG_H, pair(REG_H) + 1);
 
-        FZ(true); FN(true);
+        regs[REG_F] |= FLAG_Z | FLAG_N;
 
-        if (B() != 0) { PC(PC - 2); return 21; } // repeat instruction
+        if (regs[REG_B] != 0) { PC(PC - 2); return 21; } // repeat instruction
         return 16;
     }
 
@@ -1165,13 +2322,12 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int a = A;
-        int b = IX & 0xff;
+        int a = regs[REG_A];
+        int b = regs[REG_IXL];
         int r = (a | b) & 0xff;
-        A(r);
+        regs[REG_A] = r;
 
-        FS(r > 0x7f); FZ(r == 0);
-        FH(false); FP(isParityEven(r)); FN(false); FC(false);
+        flagsSZP(r);
         return 8;
     }
 
@@ -1190,13 +2346,12 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int a = A;
-        int b = (IY >> 8) & 0xff;
+        int a = regs[REG_A];
+        int b = regs[REG_IYH];
         int r = (a | b) & 0xff;
-        A(r);
+        regs[REG_A] = r;
 
-        FS(r > 0x7f); FZ(r == 0);
-        FH(false); FP(isParityEven(r)); FN(false); FC(false);
+        flagsSZP(r);
         return 8;
     }
 
@@ -1215,13 +2370,12 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int a = A;
-        int b = IY & 0xff;
+        int a = regs[REG_A];
+        int b = regs[REG_IYL];
         int r = (a | b) & 0xff;
-        A(r);
+        regs[REG_A] = r;
 
-        FS(r > 0x7f); FZ(r == 0);
-        FH(false); FP(isParityEven(r)); FN(false); FC(false);
+        flagsSZP(r);
         return 8;
     }
 
@@ -1240,13 +2394,12 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int a = A;
-        int b = (IX >> 8) & 0xff;
+        int a = regs[REG_A];
+        int b = regs[REG_IXH];
         int r = (a ^ b) & 0xff;
-        A(r);
+        regs[REG_A] = r;
 
-        FS(r > 0x7f); FZ(r == 0);
-        FH(false); FP(isParityEven(r)); FN(false); FC(false);
+        flagsSZP(r);
         return 8;
     }
 
@@ -1265,13 +2418,12 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int a = A;
-        int b = IX & 0xff;
+        int a = regs[REG_A];
+        int b = regs[REG_IXL];
         int r = (a ^ b) & 0xff;
-        A(r);
+        regs[REG_A] = r;
 
-        FS(r > 0x7f); FZ(r == 0);
-        FH(false); FP(isParityEven(r)); FN(false); FC(false);
+        flagsSZP(r);
         return 8;
     }
 
@@ -1290,13 +2442,12 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int a = A;
-        int b = (IY >> 8) & 0xff;
+        int a = regs[REG_A];
+        int b = regs[REG_IYH];
         int r = (a ^ b) & 0xff;
-        A(r);
+        regs[REG_A] = r;
 
-        FS(r > 0x7f); FZ(r == 0);
-        FH(false); FP(isParityEven(r)); FN(false); FC(false);
+        flagsSZP(r);
         return 8;
     }
 
@@ -1315,13 +2466,12 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int a = A;
-        int b = IY & 0xff;
+        int a = regs[REG_A];
+        int b = regs[REG_IYL];
         int r = (a ^ b) & 0xff;
-        A(r);
+        regs[REG_A] = r;
 
-        FS(r > 0x7f); FZ(r == 0);
-        FH(false); FP(isParityEven(r)); FN(false); FC(false);
+        flagsSZP(r);
         return 8;
     }
 
@@ -1340,12 +2490,10 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int a = A;
-        int b = (IX >> 8) & 0xff;
-        int r = (a - b) & 0xff;
+        int a = regs[REG_A];
+        int b = regs[REG_IXH];
 
-        FS(r > 0x7f); FZ(r == 0);
-        FH(isBorrowBit4(a, b, r)); FP(isOverflowSub(a, b, r)); FN(true); FC(isBorrowBit8(a, b, r));
+        flagsSbc(a, b, 0);
         return 8;
     }
 
@@ -1364,8 +2512,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int ixl = IX & 0xff;
-        IX((IX & 0x00ff) | (ixl << 8));
+        regs[REG_IXH] = regs[REG_IXL];
 
         return 8;
     }
@@ -1385,8 +2532,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int ixh = (IX >> 8) & 0xff;
-        IX((IX & 0xff00) | ixh);
+        regs[REG_IXL] = regs[REG_IXH];
 
         return 8;
     }
@@ -1406,8 +2552,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int iyl = IY & 0xff;
-        IY((IY & 0x00ff) | (iyl << 8));
+        regs[REG_IYH] = regs[REG_IYL];
 
         return 8;
     }
@@ -1427,8 +2572,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         // | M-cycle | ?  |
         // | T-cycle | ?  |
         // ----------------
-        int iyh = (IY >> 8) & 0xff;
-        IY((IY & 0xff00) | iyh);
+        regs[REG_IYL] = regs[REG_IYH];
 
         return 8;
     }
@@ -1453,7 +2597,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         int n = readByte(PC);
         PC(PC + 1);
 
-        IX((IX & 0x00ff) | (n << 8));
+        regs[REG_IXH] = n;
         return 11;
     }
 
@@ -1477,7 +2621,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         int n = readByte(PC);
         PC(PC + 1);
 
-        IX((IX & 0xff00) | n);
+        regs[REG_IXL] = n;
         return 11;
     }
 
@@ -1501,7 +2645,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         int n = readByte(PC);
         PC(PC + 1);
 
-        IY((IY & 0x00ff) | (n << 8));
+        regs[REG_IYH] = n;
         return 11;
     }
 
@@ -1525,7 +2669,7 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         int n = readByte(PC);
         PC(PC + 1);
 
-        IY((IY & 0xff00) | n);
+        regs[REG_IYL] = n;
         return 11;
     }
 
@@ -1562,19 +2706,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IX + d);
-
-        int b0 = a & 0x1;
-        int cf = FC();
+        int t = RR[((regs[REG_F] & FLAG_C) << 8) | readByte(pair(REG_IXH) + d)];
+        int a = t >>> 8;
 
-        a = ((a >>> 1) | (cf << 7)) & 0xff;
-        reg.setValue(a);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b0 == 1);
-
-        writeByte(IX + d, a);
+        writeByte(pair(REG_IXH) + d, a);
 
         return 23;
     }
@@ -1612,19 +2750,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IX + d);
-
-        int b7 = (a >>> 7) & 0x1;
-        int cf = FC();
+        int t = RL[((regs[REG_F] & FLAG_C) << 8) | readByte(pair(REG_IXH) + d)];
+        int a = t >>> 8;
 
-        a = ((a << 1) | cf) & 0xff;
-        reg.setValue(a);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b7 == 1);
-
-        writeByte(IX + d, a);
+        writeByte(pair(REG_IXH) + d, a);
 
         return 23;
     }
@@ -1662,17 +2794,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IX + d);
-        int b0 = a & 0x1;
-
-        a = rotateRight(a) & 0xff;
-        reg.setValue(a);
+        int t = RRC[readByte(pair(REG_IXH) + d)];
+        int a = t >>> 8;
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b0 == 1);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        writeByte(IX + d, a);
+        writeByte(pair(REG_IXH) + d, a);
 
         return 23;
     }
@@ -1710,19 +2838,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IY + d);
+        int t = RR[((regs[REG_F] & FLAG_C) << 8) | readByte(pair(REG_IYH) + d)];
+        int a = t >>> 8;
 
-        int b0 = a & 0x1;
-        int cf = FC();
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        a = ((a >>> 1) | (cf << 7)) & 0xff;
-        reg.setValue(a);
-
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b0 == 1);
-
-        writeByte(IY + d, a);
+        writeByte(pair(REG_IYH) + d, a);
 
         return 23;
     }
@@ -1760,19 +2882,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IY + d);
-
-        int b7 = (a >>> 7) & 0x1;
-        int cf = FC();
-
-        a = ((a << 1) | cf) & 0xff;
-        reg.setValue(a);
+        int t = RL[((regs[REG_F] & FLAG_C) << 8) | readByte(pair(REG_IYH) + d)];
+        int a = t >>> 8;
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b7 == 1);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        writeByte(IY + d, a);
+        writeByte(pair(REG_IYH) + d, a);
 
         return 23;
     }
@@ -1810,17 +2926,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IY + d);
-        int b0 = a & 0x1;
+        int t = RRC[readByte(pair(REG_IYH) + d)];
+        int a = t >>> 8;
 
-        a = rotateRight(a) & 0xff;
-        reg.setValue(a);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b0 == 1);
-
-        writeByte(IY + d, a);
+        writeByte(pair(REG_IYH) + d, a);
 
         return 23;
     }
@@ -1858,17 +2970,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IX + d);
-        int b7 = (a >>> 7) & 0x1;
-
-        a = rotateLeft(a) & 0xff;
-        reg.setValue(a);
+        int t = RLC[readByte(pair(REG_IXH) + d)];
+        int a = t >>> 8;
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b7 == 1);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        writeByte(IX + d, a);
+        writeByte(pair(REG_IXH) + d, a);
 
         return 23;
     }
@@ -1906,17 +3014,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IX + d);
-        int b7 = (a >>> 7) & 0x1;
+        int t = SLA[readByte(pair(REG_IXH) + d)];
+        int a = t >>> 8;
 
-        a = (a << 1) & 0xff;
-        reg.setValue(a);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b7 == 1);
-
-        writeByte(IX + d, a);
+        writeByte(pair(REG_IXH) + d, a);
 
         return 23;
     }
@@ -1954,19 +3058,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IX + d);
-
-        int b0 = a & 0x1;
-        int b7 = (a >>> 7) & 0x1;
+        int t = SRA[readByte(pair(REG_IXH) + d)];
+        int a = t >>> 8;
 
-        a = ((a >>> 1) | (b7 << 7)) & 0xff;
-        reg.setValue(a);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b0 == 1);
-
-        writeByte(IX + d, a);
+        writeByte(pair(REG_IXH) + d, a);
 
         return 23;
     }
@@ -2004,17 +3102,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IX + d);
-        int b7 = (a >>> 7) & 0x1;
-
-        a = ((a << 1) | 0x1) & 0xff;
-        reg.setValue(a);
+        int t = SLL[readByte(pair(REG_IXH) + d)];
+        int a = t >>> 8;
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b7 == 1);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        writeByte(IX + d, a);
+        writeByte(pair(REG_IXH) + d, a);
 
         return 23;
     }
@@ -2052,17 +3146,13 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
-        int a = readByte(IX + d);
-        int b0 = a & 0x1;
-
-        a = (a >>> 1) & 0xff;
-        reg.setValue(a);
+        int t = SRL[readByte(pair(REG_IXH) + d)];
+        int a = t >>> 8;
 
-        FS(a > 0x7f); FZ(a == 0);
-        FH(false); FP(isParityEven(a)); FN(false); FC(b0 == 1);
+        regs[src] = a;
+        regs[REG_F] = (regs[REG_F] & FLAG_XY) | (t & 0xff);
 
-        writeByte(IX + d, a);
+        writeByte(pair(REG_IXH) + d, a);
 
         return 23;
     }
@@ -2090,15 +3180,14 @@ public final class Z80 extends InstructionSet implements ClockedDevice {
         PC(PC + 2);
 
         int src = opcode & 0x07;
-        RegisterLookup reg = registerLookup[src];
 
         int bit = (opcode >> 3) & 0x07; // the position of the bit to reset
-        int a = readByte(IY + d);
+        int a = readByte(pair(REG_IYH) + d);
 
         a = a & ~(0x1 << bit);
 
-        reg.setValue(a);
-        writeByte(IY + d, a);
+        regs[src] = a;
+        writeByte(pair(REG_IYH) + d, a);
 
         return 23;
     }
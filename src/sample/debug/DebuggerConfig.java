@@ -31,7 +31,14 @@ import java.util.Objects;
 
 
 /**
- * Holds CLI provided debugging and testing options.
+ * Holds debugging and testing options.
+ *
+ * <pre>
+ * The static options are the ones provided through the CLI, for the whole process.
+ * A machine gets its own instance, by default built from the CLI options
+ * with {@link #fromCommandLine()}, so that machines running side by side
+ * in the same process can be configured independently.
+ * </pre>
  */
 public class DebuggerConfig {
 
@@ -47,6 +54,25 @@ public class DebuggerConfig {
      */
     public static final boolean TST_MODE = Objects.nonNull(System.getProperty("test"));
 
+    /*
+     * To record a trace of the last executed instructions, pass the -Dtrace=N option
+     * through the CLI, N being the number of instructions to keep.
+     * The trace is dumped to trace.log when the machine crashes.
+     */
+    public static final int TRC_SIZE = Integer.getInteger("trace", 0);
+
+    /*
+     * To count the executions and T-states of every instruction, pass the -Dhistogram
+     * option through the CLI. Without it, the counting is compiled out of the cpu.
+     */
+    public static final boolean HST_MODE = Objects.nonNull(System.getProperty("histogram"));
+
+    /*
+     * To count the IN and OUT accesses of every port, pass the -Dioprofile option
+     * through the CLI. The busiest ports are written to ioprofile.txt on exit.
+     */
+    public static final boolean IOP_MODE = Objects.nonNull(System.getProperty("ioprofile"));
+
     /*
      * Track unsupported instructions.
      * To enable this mode, pass the -Dtu option through the CLI.
@@ -55,4 +81,66 @@ public class DebuggerConfig {
      * both documented and undocumented.
      */
     /* public static final boolean TRACK_UNSUPPORTED = Objects.nonNull(System.getProperty("tu")); */
+
+
+
+    private final boolean debugMode;
+    private final boolean stepMode;
+    private final boolean testMode;
+    private final int traceSize;
+
+
+
+    /**
+     * Construct the options of one machine.
+     *
+     * @param debugMode true to enable the debug mode
+     * @param stepMode true to enable the step by step debug mode
+     * @param testMode true to enable the test mode
+     */
+    public DebuggerConfig(boolean debugMode, boolean stepMode, boolean testMode) {
+        this(debugMode, stepMode, testMode, 0);
+    }
+
+
+
+    /**
+     * Construct the options of one machine, recording an instruction trace.
+     *
+     * @param debugMode true to enable the debug mode
+     * @param stepMode true to enable the step by step debug mode
+     * @param testMode true to enable the test mode
+     * @param traceSize the number of instructions to keep in the trace, 0 for no trace
+     */
+    public DebuggerConfig(boolean debugMode, boolean stepMode, boolean testMode, int traceSize) {
+        this.debugMode = debugMode;
+        this.stepMode = stepMode;
+        this.testMode = testMode;
+        this.traceSize = traceSize;
+    }
+
+
+
+    /**
+     * @return the options provided through the CLI
+     */
+    public static DebuggerConfig fromCommandLine() {
+        return new DebuggerConfig(DBG_MODE, DBG_SBS_MODE, TST_MODE, TRC_SIZE);
+    }
+
+
+
+    public boolean isDebugMode() { return debugMode; }
+
+
+
+    public boolean isStepMode() { return stepMode; }
+
+
+
+    public boolean isTestMode() { return testMode; }
+
+
+
+    public int getTraceSize() { return traceSize; }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.debug;
+
+import sample.Machine;
+import sample.cpu.CpuState;
+import sample.cpu.Fusion;
+import sample.cpu.Z80;
+import sample.utils.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+
+/**
+ * Runs two machines side by side from the same snapshot, a reference one with
+ * the plain interpreter and one with every fast path enabled, and stops at the
+ * first point where they disagree.
+ *
+ * <pre>
+ * The fast machine runs with the block cache, fusion, bulk block
+ * instructions, idle loop skipping and lazy flags. Both machines are compared
+ * every -Dstride cycles, at the first instruction boundary they have in
+ * common, since a cached block or a bulk LDIR covers many instructions
+ * of the reference machine. A stride of 1 compares at every instruction the
+ * fast machine stops at.
+ *
+ * .----------------------------------------------------------------.
+ * | compared         | how                                         |
+ * |----------------------------------------------------------------|
+ * | cpu              | the captured states, all but the count of   |
+ * |                  | instructions, with the lazy flags settled   |
+ * | memory           | all 64K, up to the first differing address  |
+ * `----------------------------------------------------------------'
+ *
+ * Both machines live in the same process, so the memory is compared as is
+ * rather than through hashes. On the first divergence both states are printed
+ * and the traces of the last instructions of each machine are dumped next to
+ * the snapshot, as .reference.trace and .fast.trace.
+ *
+ * Runs headless over a corpus of 48K SNA snapshots, files or directories:
+ *
+ *  java -cp classes -Drom=48.rom -Dframes=500 -Dstride=69888 sample.debug.LockstepVerifier snapshots/
+ *
+ * The exit status is 1 if any snapshot diverged.
+ * </pre>
+ */
+public final class LockstepVerifier {
+
+    private static final int FRAMES = Integer.getInteger("frames", 500);
+    private static final int STRIDE = Integer.getInteger("stride", Machine.CLOCK_CYCLES_PER_FRAME);
+    private static final int TRACE_SIZE = Math.max(DebuggerConfig.TRC_SIZE, 1000);
+
+    private final Machine reference = newMachine(false);
+    private final Machine fast = newMachine(true);
+
+    private final CpuState referenceState = new CpuState();
+    private final CpuState fastState = new CpuState();
+
+
+
+    private LockstepVerifier(byte[] rom, byte[] snapshot) {
+        for (Machine machine : new Machine[] { reference, fast }) {
+            machine.loadRom(rom);
+            machine.loadSNA(snapshot);
+        }
+    }
+
+
+
+    public static void main(String[] args) {
+        String rom = System.getProperty("rom");
+        if (rom == null || args.length == 0) {
+            System.out.println("Usage: java -Drom=file [-Dframes=n] [-Dstride=cycles] "
+                    + LockstepVerifier.class.getName() + " snapshot|directory ...");
+            return;
+        }
+
+        List<File> corpus = new ArrayList<>();
+        for (String arg : args) { collect(new File(arg), corpus); }
+
+        byte[] romContent = FileUtils.loadFile(rom);
+        int diverged = 0;
+        for (File file : corpus) {
+            byte[] snapshot = FileUtils.loadFile(file.getPath());
+            String result;
+            try {
+                result = new LockstepVerifier(romContent, snapshot).verify(file.getPath());
+            } catch (RuntimeException e) {
+                result = "FAILED " + e;
+            }
+
+            System.out.println(file.getPath() + ": " + (result == null ? "OK" : result));
+            if (result != null) { diverged++; }
+        }
+
+        System.out.println(corpus.size() + " snapshots, " + diverged + " diverged");
+        if (diverged > 0) { System.exit(1); }
+    }
+
+
+
+    /**
+     * Run both machines for the configured number of frames.
+     *
+     * @param name the snapshot file, the traces are dumped next to it
+     * @return null if the machines agreed all along, or what diverged
+     */
+    private String verify(String name) {
+        Z80 referenceCpu = reference.getCpu();
+        Z80 fastCpu = fast.getCpu();
+        long end = referenceCpu.getCycleCount() + (long) FRAMES * Machine.CLOCK_CYCLES_PER_FRAME;
+        long compared = referenceCpu.getCycleCount();
+
+        while (referenceCpu.getCycleCount() < end) {
+            long cycle = referenceCpu.getCycleCount();
+            if (cycle - compared > STRIDE + Machine.CLOCK_CYCLES_PER_FRAME) {
+                // the instruction timings disagree, the machines no longer stop together
+                return diverged(name, "no common instruction boundary since cycle " + compared);
+            }
+            // catch up the machine behind, until both stop on the same instruction boundary
+            if (fastCpu.getCycleCount() < cycle) {
+                fast.runUntil(cycle);
+                continue;
+            }
+            if (cycle < fastCpu.getCycleCount()) {
+                reference.runUntil(fastCpu.getCycleCount());
+                continue;
+            }
+
+            compared = cycle;
+            String difference = compare();
+            if (difference != null) {
+                return diverged(name, "diverged at cycle " + cycle + ", " + difference
+                        + "\nreference:\n" + referenceState + "\nfast:\n" + fastState);
+            }
+
+            reference.runUntil(cycle + STRIDE);
+            fast.runUntil(cycle + STRIDE);
+        }
+        return null;
+    }
+
+
+
+    private String diverged(String name, String difference) {
+        reference.dumpTrace(name + ".reference.trace");
+        fast.dumpTrace(name + ".fast.trace");
+        return difference;
+    }
+
+
+
+    /**
+     * @return null if both machines are in the same state, or the first difference
+     */
+    private String compare() {
+        for (Machine machine : new Machine[] { reference, fast }) {
+            machine.getCpu().syncFlags();
+        }
+        reference.getCpu().capture(referenceState);
+        fast.getCpu().capture(fastState);
+
+        int slot = referenceState.firstDifference(fastState);
+        if (slot >= 0) {
+            return CpuState.slotName(slot) + " is " + Integer.toHexString(fastState.get(slot))
+                    + " instead of " + Integer.toHexString(referenceState.get(slot));
+        }
+
+        byte[] referenceMemory = reference.getBus().getMemory();
+        byte[] fastMemory = fast.getBus().getMemory();
+        if (!Arrays.equals(referenceMemory, fastMemory)) {
+            int address = 0;
+            while (referenceMemory[address] == fastMemory[address]) { address++; }
+            return "memory at " + Integer.toHexString(address) + " is " + Integer.toHexString(fastMemory[address] & 0xff)
+                    + " instead of " + Integer.toHexString(referenceMemory[address] & 0xff);
+        }
+        return null;
+    }
+
+
+
+    private static Machine newMachine(boolean fast) {
+        Machine machine = new Machine(new DebuggerConfig(false, false, false, TRACE_SIZE));
+        Z80 cpu = machine.getCpu();
+
+        cpu.setBlockCaching(fast);
+        cpu.setFusion(fast ? Fusion.withDefaults() : null);
+        cpu.setBulkBlockInstructions(fast);
+        cpu.setIdleLoopSkipping(fast);
+        cpu.setLazyFlags(fast);
+        cpu.setHaltSkipping(fast);
+        return machine;
+    }
+
+
+
+    private static void collect(File file, List<File> corpus) {
+        File[] files = file.listFiles(FileUtils.snaFileFilter(true)::accept);
+        if (files == null) {
+            corpus.add(file);
+            return;
+        }
+
+        Arrays.sort(files);
+        for (File child : files) { collect(child, corpus); }
+    }
+}
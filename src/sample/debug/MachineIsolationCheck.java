@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.debug;
+
+import sample.Machine;
+import sample.cpu.CpuState;
+import sample.cpu.Fusion;
+import sample.cpu.Z80;
+import sample.utils.FileUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+
+
+/**
+ * Runs many machines at once, each one on its own thread, and checks that
+ * they do not interfere with each other.
+ *
+ * <pre>
+ * Every machine starts from the same ROM, and the same snapshot if one is
+ * given, and runs the same number of frames. Their final states are then
+ * compared against the one of a machine run alone, on the main thread, before
+ * the others start. Any state shared between the machines, like a singleton
+ * audio buffer or a static field of the cpu, shows up as a difference.
+ *
+ * .----------------------------------------------------------------.
+ * | compared         | how                                         |
+ * |----------------------------------------------------------------|
+ * | cpu              | the captured states, with the lazy flags    |
+ * |                  | settled, see {@link CpuState}               |
+ * | memory           | all 64K, up to the first differing address  |
+ * | audio            | a CRC of all the samples the machine put    |
+ * |                  | into its audio buffer                       |
+ * | border           | the last border color                       |
+ * `----------------------------------------------------------------'
+ *
+ * With -Dfast, all the machines run with every fast path enabled.
+ *
+ *  java -cp classes -Drom=48.rom -Dmachines=16 -Dframes=500 sample.debug.MachineIsolationCheck [snapshot]
+ *
+ * The exit status is 1 if any machine differed.
+ * </pre>
+ */
+public final class MachineIsolationCheck {
+
+    private static final int MACHINES = Integer.getInteger("machines", 8);
+    private static final int FRAMES = Integer.getInteger("frames", 500);
+    private static final boolean FAST = Boolean.getBoolean("fast");
+
+    // what a machine ended up with
+    private static final class Outcome {
+        final CpuState state = new CpuState();
+        byte[] memory;
+        long audioCrc;
+        int border;
+        RuntimeException failure;
+    }
+
+
+
+    private MachineIsolationCheck() { }
+
+
+
+    public static void main(String[] args) throws InterruptedException {
+        String rom = System.getProperty("rom");
+        if (rom == null) {
+            System.out.println("Usage: java -Drom=file [-Dmachines=n] [-Dframes=n] [-Dfast] "
+                    + MachineIsolationCheck.class.getName() + " [snapshot]");
+            return;
+        }
+
+        byte[] romContent = FileUtils.loadFile(rom);
+        byte[] snapshot = args.length > 0 ? FileUtils.loadFile(args[0]) : null;
+
+        Outcome expected = run(newMachine(romContent, snapshot));
+        if (expected.failure != null) { throw expected.failure; }
+
+        List<Machine> machines = new ArrayList<>();
+        for (int i = 0; i < MACHINES; i++) { machines.add(newMachine(romContent, snapshot)); }
+
+        Outcome[] outcomes = new Outcome[MACHINES];
+        Thread[] threads = new Thread[MACHINES];
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < MACHINES; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                outcomes[index] = run(machines.get(index));
+            }, "machine-" + i);
+            threads[i].start();
+        }
+
+        // release all the machines together, so that they really run side by side
+        start.countDown();
+        for (Thread thread : threads) { thread.join(); }
+
+        int differed = 0;
+        for (int i = 0; i < MACHINES; i++) {
+            String difference = compare(expected, outcomes[i]);
+            System.out.println("machine " + i + ": " + (difference == null ? "OK" : difference));
+            if (difference != null) { differed++; }
+        }
+
+        System.out.println(MACHINES + " machines, " + FRAMES + " frames, " + differed + " differed");
+        if (differed > 0) { System.exit(1); }
+    }
+
+
+
+    /**
+     * Run a machine for the configured number of frames.
+     */
+    private static Outcome run(Machine machine) {
+        Outcome outcome = new Outcome();
+        byte[] samples = new byte[Machine.CLOCK_CYCLES_PER_FRAME / Machine.AUDIO_SAMPLE_AT_CLOCK_CYCLE + 1];
+        CRC32 crc = new CRC32();
+
+        try {
+            for (int frame = 0; frame < FRAMES; frame++) {
+                machine.runFrame();
+
+                // drain the audio buffer every frame, so that no sample is lost
+                int count = machine.getAudioBuffer().get(samples);
+                crc.update(samples, 0, count);
+            }
+        } catch (RuntimeException e) {
+            outcome.failure = e;
+            return outcome;
+        }
+
+        Z80 cpu = machine.getCpu();
+        cpu.syncFlags();
+        cpu.capture(outcome.state);
+        outcome.memory = machine.getBus().getMemory();
+        outcome.audioCrc = crc.getValue();
+        outcome.border = machine.getBus().getBorderColor();
+        return outcome;
+    }
+
+
+
+    /**
+     * @return null if the outcomes are the same, or the first difference
+     */
+    private static String compare(Outcome expected, Outcome actual) {
+        if (actual == null) { return "did not run"; }
+        if (actual.failure != null) { return "FAILED " + actual.failure; }
+
+        int slot = expected.state.firstDifference(actual.state);
+        if (slot >= 0) {
+            return CpuState.slotName(slot) + " is " + Integer.toHexString(actual.state.get(slot))
+                    + " instead of " + Integer.toHexString(expected.state.get(slot));
+        }
+
+        if (!Arrays.equals(expected.memory, actual.memory)) {
+            int address = 0;
+            while (expected.memory[address] == actual.memory[address]) { address++; }
+            return "memory at " + Integer.toHexString(address) + " is " + Integer.toHexString(actual.memory[address] & 0xff)
+                    + " instead of " + Integer.toHexString(expected.memory[address] & 0xff);
+        }
+
+        if (expected.audioCrc != actual.audioCrc) { return "the audio samples differ"; }
+        if (expected.border != actual.border) { return "border is " + actual.border + " instead of " + expected.border; }
+        return null;
+    }
+
+
+
+    private static Machine newMachine(byte[] rom, byte[] snapshot) {
+        Machine machine = new Machine(new DebuggerConfig(false, false, false));
+        machine.loadRom(rom);
+        if (snapshot != null) { machine.loadSNA(snapshot); }
+
+        Z80 cpu = machine.getCpu();
+        cpu.setBlockCaching(FAST);
+        cpu.setFusion(FAST ? Fusion.withDefaults() : null);
+        cpu.setBulkBlockInstructions(FAST);
+        cpu.setIdleLoopSkipping(FAST);
+        cpu.setLazyFlags(FAST);
+        cpu.setHaltSkipping(FAST);
+        return machine;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.debug;
+
+import java.io.PrintStream;
+import java.util.stream.IntStream;
+
+
+
+/**
+ * Counts the executions and the T-states of every instruction.
+ *
+ * <pre>
+ * The counters are indexed by the dense key of the instruction,
+ * (table << 8) | opcode, the table being one of the decode tables:
+ *
+ * .---------------------------------------------.
+ * | table | 0 | 1  | 2  | 3  | 4  | 5    | 6    |
+ * |---------------------------------------------|
+ * | pfx   | - | CB | ED | DD | FD | DDCB | FDCB |
+ * `---------------------------------------------'
+ *
+ * The counting is enabled with -Dhistogram, see {@link DebuggerConfig#HST_MODE}.
+ * Being a static final flag, the counting is removed from the compiled
+ * interpreter altogether when not enabled.
+ * </pre>
+ */
+public final class OpcodeHistogram {
+
+    private static final String[] PREFIXES = { "", "CB", "ED", "DD", "FD", "DDCB", "FDCB" };
+
+    public static final int KEY_COUNT = PREFIXES.length * 256;
+
+    private final long[] executions = new long[KEY_COUNT];
+    private final long[] tStates = new long[KEY_COUNT];
+
+
+
+    public OpcodeHistogram() { }
+
+
+
+    /**
+     * Count one execution.
+     *
+     * @param key the dense key of the instruction
+     * @param t the T-states it took
+     */
+    public void count(int key, int t) {
+        executions[key]++;
+        tStates[key] += t;
+    }
+
+
+
+    public long getExecutions(int key) { return executions[key]; }
+
+
+
+    public long getTStates(int key) { return tStates[key]; }
+
+
+
+    /**
+     * Write the executed instructions as CSV, most executed first.
+     * Columns: prefix, opcode, executions, T-states.
+     *
+     * @param out the stream to print to
+     */
+    public void writeCsv(PrintStream out) {
+        out.println("prefix,opcode,executions,tstates");
+        for (int key : byExecutions()) {
+            out.printf("%s,%02X,%d,%d%n", PREFIXES[key >>> 8], key & 0xff, executions[key], tStates[key]);
+        }
+    }
+
+
+
+    /**
+     * Write the executed instructions as a JSON array, most executed first.
+     *
+     * @param out the stream to print to
+     */
+    public void writeJson(PrintStream out) {
+        out.println("[");
+        int[] keys = byExecutions();
+        for (int i = 0; i < keys.length; i++) {
+            int key = keys[i];
+            out.printf("  {\"prefix\": \"%s\", \"opcode\": \"%02X\", \"executions\": %d, \"tstates\": %d}%s%n",
+                    PREFIXES[key >>> 8], key & 0xff, executions[key], tStates[key],
+                    i < keys.length - 1 ? "," : "");
+        }
+        out.println("]");
+    }
+
+
+
+    // the keys of the executed instructions, most executed first
+    private int[] byExecutions() {
+        return IntStream.range(0, KEY_COUNT)
+                .filter(key -> executions[key] > 0)
+                .boxed()
+                .sorted((a, b) -> Long.compare(executions[b], executions[a]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.debug;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+
+/**
+ * A sampling profiler of the guest code.
+ *
+ * <pre>
+ * Every 'period' T-states, the cpu reports its PC, which is counted in a
+ * 64K-entry histogram. Optionally, the depth of the stack is counted too,
+ * in words below the stack pointer seen when the sampling started.
+ *
+ * The cpu stops for a sample at the end of the instruction during which the
+ * sample became due, the same way it stops for any other event, so there is
+ * no cost per instruction.
+ *
+ * The report ranks the hot addresses, and the hot address ranges:
+ * runs of sampled addresses no more than {@link #RANGE_GAP} bytes apart,
+ * which is roughly how the loops of a game show up.
+ * </pre>
+ */
+public final class PcSampler {
+
+    public static final int RANGE_GAP = 8;
+
+    private static final int MAX_DEPTH = 1024;
+
+    private final int period;
+    private final boolean sampleStack;
+
+    private final int[] pcs = new int[0xffff + 1];
+    private final int[] depths = new int[MAX_DEPTH + 1];   // the last one counts the deeper ones
+    private int stackBase = -1;
+    private long samples = 0;
+
+
+
+    /**
+     * Construct the sampler.
+     *
+     * @param period the number of T-states between two samples
+     * @param sampleStack true to sample the stack depth as well
+     */
+    public PcSampler(int period, boolean sampleStack) {
+        if (period <= 0) { throw new IllegalArgumentException("The sampling period must be positive"); }
+        this.period = period;
+        this.sampleStack = sampleStack;
+    }
+
+
+
+    public int getPeriod() { return period; }
+
+
+
+    /**
+     * Take one sample.
+     *
+     * @param pc the program counter
+     * @param sp the stack pointer
+     */
+    public void sample(int pc, int sp) {
+        pcs[pc & 0xffff]++;
+        samples++;
+
+        if (sampleStack) {
+            if (stackBase < 0) { stackBase = sp; }
+            int depth = ((stackBase - sp) & 0xffff) >>> 1;
+            depths[Math.min(depth, MAX_DEPTH)]++;
+        }
+    }
+
+
+
+    /** Forget all the samples. */
+    public void clear() {
+        Arrays.fill(pcs, 0);
+        Arrays.fill(depths, 0);
+        stackBase = -1;
+        samples = 0;
+    }
+
+
+
+    public long getSamples() { return samples; }
+
+
+
+    public int getSamples(int pc) { return pcs[pc & 0xffff]; }
+
+
+
+    /**
+     * Print the ranked hot addresses and address ranges, and the stack depths if sampled.
+     *
+     * @param out the stream to print to
+     * @param top the number of addresses and ranges to print
+     */
+    public void report(PrintStream out, int top) {
+        out.printf("%d samples, one every %d T-states%n", samples, period);
+
+        out.println("hot addresses");
+        List<int[]> addresses = new ArrayList<>();
+        for (int pc = 0; pc < pcs.length; pc++) {
+            if (pcs[pc] > 0) { addresses.add(new int[] { pc, pc, pcs[pc] }); }
+        }
+        print(out, addresses, top);
+
+        out.println("hot ranges");
+        List<int[]> ranges = new ArrayList<>();
+        int[] range = null;
+        for (int pc = 0; pc < pcs.length; pc++) {
+            if (pcs[pc] == 0) { continue; }
+            if (range != null && pc - range[1] <= RANGE_GAP) {
+                range[1] = pc;
+                range[2] += pcs[pc];
+            } else {
+                range = new int[] { pc, pc, pcs[pc] };
+                ranges.add(range);
+            }
+        }
+        print(out, ranges, top);
+
+        if (sampleStack) {
+            out.println("stack depths (words)");
+            for (int depth = 0; depth < depths.length; depth++) {
+                if (depths[depth] == 0) { continue; }
+                out.printf("  %s%-6d %10d  %6.2f%%%n",
+                        depth == MAX_DEPTH ? ">=" : "  ", depth, depths[depth], percent(depths[depth]));
+            }
+        }
+    }
+
+
+
+    // print the top entries of { first, last, samples } by samples
+    private void print(PrintStream out, List<int[]> entries, int top) {
+        entries.sort((a, b) -> Integer.compare(b[2], a[2]));
+        for (int i = 0; i < Math.min(top, entries.size()); i++) {
+            int[] e = entries.get(i);
+            String where = e[0] == e[1] ? String.format("%04X", e[0]) : String.format("%04X-%04X", e[0], e[1]);
+            out.printf("  %-10s %10d  %6.2f%%%n", where, e[2], percent(e[2]));
+        }
+    }
+
+
+
+    private double percent(long count) {
+        return samples == 0 ? 0 : 100.0 * count / samples;
+    }
+}
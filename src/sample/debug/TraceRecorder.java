@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.debug;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+
+
+/**
+ * Records the last executed instructions into a preallocated ring.
+ *
+ * <pre>
+ * Every instruction takes one fixed size record of ints, written in place,
+ * so recording never allocates. Once the ring is full, the oldest records
+ * are overwritten. The ring is dumped on demand, for example when the
+ * machine crashes or a breakpoint is hit, either in binary or readable form.
+ *
+ * .---------------------------------------------.
+ * | int  | content                              |
+ * |---------------------------------------------|
+ * | 0    | PC                                   |
+ * | 1    | the 4 bytes at PC, first in bits 0-7 |
+ * | 2    | A, F, B, C from the high byte down   |
+ * | 3    | D, E, H, L                           |
+ * | 4    | IXH, IXL, IYH, IYL                   |
+ * | 5    | SP                                   |
+ * | 6, 7 | cycle count, low and high int        |
+ * `---------------------------------------------'
+ *
+ * The registers and the cycle count are the ones before the instruction.
+ * </pre>
+ */
+public final class TraceRecorder {
+
+    public static final int RECORD_SIZE = 8;
+
+    // binary dump header: magic, version, record size and record count
+    private static final int MAGIC = 0x5A383054;    // "Z80T"
+    private static final int VERSION = 1;
+
+    private final int[] ring;
+    private final int capacity;
+
+    private int next = 0;       // the record to be written next
+    private long recorded = 0;  // the total number of records ever written
+
+
+
+    /**
+     * Construct the recorder.
+     *
+     * @param capacity the number of instructions kept
+     */
+    public TraceRecorder(int capacity) {
+        this.capacity = capacity;
+        ring = new int[capacity * RECORD_SIZE];
+    }
+
+
+
+    /**
+     * Record one instruction.
+     *
+     * @param pc the address of the instruction
+     * @param bytes the 4 bytes at PC, first in the low byte
+     * @param afbc A, F, B and C packed from the high byte down
+     * @param dehl D, E, H and L packed from the high byte down
+     * @param ixiy IXH, IXL, IYH and IYL packed from the high byte down
+     * @param sp the stack pointer
+     * @param cycles the cycle count
+     */
+    public void record(int pc, int bytes, int afbc, int dehl, int ixiy, int sp, long cycles) {
+        int i = next * RECORD_SIZE;
+        ring[i] = pc;
+        ring[i + 1] = bytes;
+        ring[i + 2] = afbc;
+        ring[i + 3] = dehl;
+        ring[i + 4] = ixiy;
+        ring[i + 5] = sp;
+        ring[i + 6] = (int) cycles;
+        ring[i + 7] = (int) (cycles >>> 32);
+
+        if (++next == capacity) { next = 0; }
+        recorded++;
+    }
+
+
+
+    /**
+     * @return the number of records currently kept
+     */
+    public int size() {
+        return (int) Math.min(recorded, capacity);
+    }
+
+
+
+    /** Forget all the records. */
+    public void clear() {
+        next = 0;
+        recorded = 0;
+    }
+
+
+
+    /**
+     * Dump the records, oldest first, in binary form.
+     * A header of 4 ints (magic, version, record size, record count)
+     * is followed by the records, all ints being big endian.
+     *
+     * @param out the stream to write to, left open
+     */
+    public void dumpBinary(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        int count = size();
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(RECORD_SIZE);
+        data.writeInt(count);
+
+        for (int r = 0; r < count; r++) {
+            int i = index(r);
+            for (int k = 0; k < RECORD_SIZE; k++) { data.writeInt(ring[i + k]); }
+        }
+        data.flush();
+    }
+
+
+
+    /**
+     * Dump the records, oldest first, one readable line each.
+     *
+     * @param out the stream to print to
+     */
+    public void dumpText(PrintStream out) {
+        int count = size();
+        out.printf("Last %d of %d instructions%n", count, recorded);
+
+        for (int r = 0; r < count; r++) {
+            int i = index(r);
+            int bytes = ring[i + 1];
+            long cycles = (ring[i + 6] & 0xffffffffL) | ((long) ring[i + 7] << 32);
+
+            out.printf("%12d  %04X  %02X %02X %02X %02X  AF=%04X BC=%04X DE=%04X HL=%04X IX=%04X IY=%04X SP=%04X%n",
+                    cycles, ring[i],
+                    bytes & 0xff, (bytes >>> 8) & 0xff, (bytes >>> 16) & 0xff, bytes >>> 24,
+                    ring[i + 2] >>> 16, ring[i + 2] & 0xffff,
+                    ring[i + 3] >>> 16, ring[i + 3] & 0xffff,
+                    ring[i + 4] >>> 16, ring[i + 4] & 0xffff,
+                    ring[i + 5]);
+        }
+    }
+
+
+
+    // the ring index of the r-th oldest record
+    private int index(int r) {
+        int oldest = recorded > capacity ? next : 0;
+        return ((oldest + r) % capacity) * RECORD_SIZE;
+    }
+}
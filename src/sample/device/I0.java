@@ -38,23 +38,36 @@ import java.util.Arrays;
  * are actually handled in the specialized bus implementations.
  * By default, a 16-bit I/O address space is assumed and
  * reading from a port will return 0xFF.
+ * As a peripheral, it decodes every port.
  * </pre>
  */
-public class I0 {
+public class I0 implements Peripheral {
 
-    private final int io[] = new int[0xffff + 1];
+    // packed as bytes, read back unsigned
+    private final byte io[] = new byte[0xffff + 1];
 
     public I0() { reset(); }
 
 
 
+    @Override
+    public int getPortMask() { return 0; }
+
+
+
+    @Override
+    public int getPortMatch() { return 0; }
+
+
+
     /**
      * Provide direct access
      * to the underlying IO registers array.
+     * The bytes are signed in Java, mask them with 0xFF.
      *
      * @return an array representing the IO registers
      */
-    public int[] getIO() {
+    public byte[] getIO() {
         return io;
     }
 
@@ -66,8 +79,9 @@ public class I0 {
      * @param address the IO address
      * @return the byte read from the specified address
      */
+    @Override
     public int readByte(int address) {
-        return io[address & 0xFFFF];
+        return io[address & 0xFFFF] & 0xFF;
     }
 
 
@@ -78,8 +92,9 @@ public class I0 {
      * @param address the IO address
      * @param data the byte to be written to the specified address
      */
+    @Override
     public void writeByte(int address, int data) {
-        io[address & 0xFFFF] = data & 0xFF;
+        io[address & 0xFFFF] = (byte) data;
     }
 
 
@@ -89,6 +104,6 @@ public class I0 {
      * by filling the array with 0xff values.
      */
     public final void reset() {
-        Arrays.fill(io, 0xff);
+        Arrays.fill(io, (byte) 0xff);
     }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.device;
+
+/**
+ * A Kempston joystick interface.
+ * <pre>
+ * Decodes the ports with A5, A6 and A7 low, traditionally port 0x1F.
+ * Reading returns the joystick state, bits 000FUDLR, active high.
+ * Writing is ignored.
+ * </pre>
+ */
+public final class KempstonJoystick implements Peripheral {
+
+    private int state = 0;
+
+
+
+    @Override
+    public int getPortMask() { return 0x00e0; }
+
+
+
+    @Override
+    public int getPortMatch() { return 0x0000; }
+
+
+
+    @Override
+    public int readByte(int port) { return state; }
+
+
+
+    @Override
+    public void writeByte(int port, int data) { }
+
+
+
+    /**
+     * Set the joystick state, from the host's side.
+     *
+     * @param state the directions and fire, bits 000FUDLR, active high
+     */
+    public void setState(int state) { this.state = state & 0x1f; }
+
+
+
+    public int getState() { return state; }
+}
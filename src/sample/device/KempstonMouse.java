@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.device;
+
+/**
+ * A Kempston mouse interface.
+ * <pre>
+ * Decodes the ports with A0 high and A5 low. A8 and A10 select the data:
+ *
+ * .------------------------------------------.
+ * | port    | A10 | A8 | data                |
+ * |------------------------------------------|
+ * | 0xFADF  |  0  | 0  | buttons             |
+ * | 0xFBDF  |  0  | 1  | x position          |
+ * | 0xFFDF  |  1  | 1  | y position          |
+ * `------------------------------------------'
+ *
+ * Writing is ignored.
+ * </pre>
+ */
+public final class KempstonMouse implements Peripheral {
+
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int BUTTONS = 2;
+
+    private final int[] data = new int[3];
+
+
+
+    @Override
+    public int getPortMask() { return 0x0021; }
+
+
+
+    @Override
+    public int getPortMatch() { return 0x0001; }
+
+
+
+    @Override
+    public int readByte(int port) {
+        if ((port & 0x0100) == 0) { return data[BUTTONS]; }
+        return (port & 0x0400) == 0 ? data[X] : data[Y];
+    }
+
+
+
+    @Override
+    public void writeByte(int port, int data) { }
+
+
+
+    /**
+     * Set the mouse data, from the host's side.
+     *
+     * @param type one of X, Y and BUTTONS
+     * @param value the position or the buttons state
+     */
+    public void setData(int type, int value) { data[type] = value & 0xff; }
+
+
+
+    public int getData(int type) { return data[type]; }
+}
@@ -27,15 +27,96 @@
 package sample.device;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 
+/**
+ * The 64K address space, mapped through a table of 1K pages.
+ *
+ * <pre>
+ * Every page is backed by an array, from an offset on, and has a write policy.
+ * By default all pages map, in order, the 64KB array of {@link #getMemory()},
+ * as plain RAM. A bus changes the map to fit its machine: it protects its ROM,
+ * hooks its screen, and may later switch banks by mapping other arrays.
+ *
+ * .------------------------------------------------------------------.
+ * | policy      | on write                                           |
+ * |------------------------------------------------------------------|
+ * | RAM         | the byte is stored                                 |
+ * | READ_ONLY   | the byte is dropped                                |
+ * | HOOKED      | the byte is stored, then the page's hook is called |
+ * `------------------------------------------------------------------'
+ *
+ * Reading is a single indexed access, whatever the page:
+ * each page's offset is kept relative to the address space, so that
+ * the address is an index into the page's array as it is.
+ *
+ * A memory can be forked, see {@link #fork()}. The fork shares all the pages,
+ * which are counted by owner, and a shared page is cloned by whichever side
+ * writes to it first. A fork costs a few small arrays, whatever the content,
+ * and each side then pays 1K per page it actually writes.
+ *
+ * Every page written to, through any of the write methods, is marked dirty
+ * in a 64 bit mask, one bit per page, until the mask is taken. Checkpoints
+ * take the mask to only save the pages changed since the previous one.
+ * Writes made straight into {@link #getMemory()} are not tracked.
+ * </pre>
+ */
 public class Memory {
 
-    // 16-bit address space, allowing 64K memory
-    private final int mem[] = new int[0xffff + 1];
+    public static final int PAGE_SHIFT = 10;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGE_COUNT = 0x10000 >>> PAGE_SHIFT;
+
+    // the write policies
+    public static final int RAM = 0;
+    public static final int READ_ONLY = 1;
+    public static final int HOOKED = 2;
+
+    // 16-bit address space, allowing 64K memory.
+    // the bytes are packed, 64KB in total, and read back unsigned.
+    // forks only allocate their own when it is asked for.
+    private byte mem[];
+    private boolean memShared = false;  // a fork still reads from it
+
+    // the memory map. a page's offset is its offset in the array minus its address
+    private final byte[][] pageData = new byte[PAGE_COUNT][];
+    private final int[] pageOffset = new int[PAGE_COUNT];
+    private final int[] pagePolicy = new int[PAGE_COUNT];
+    private final WriteHook[] pageHook = new WriteHook[PAGE_COUNT];
+    private final Share[] pageShare = new Share[PAGE_COUNT];    // null when owned alone
+    private final boolean[] pageInMem = new boolean[PAGE_COUNT];  // the page belongs in mem, as mapped by default
 
-    public Memory() { }
+    // the pages written to since the mask was last taken, page n as bit n
+    private long dirtyPages = 0;
+
+    // 256-byte pages the watcher wants to be notified about when written to
+    private final boolean[] watchedPages = new boolean[256];
+    private WriteWatcher watcher;
+
+    public Memory() {
+        mem = new byte[0xffff + 1];
+        map(0, mem.length, mem, 0, RAM, null);
+    }
+
+
+
+    private Memory(Memory source) {
+        System.arraycopy(source.pageData, 0, pageData, 0, PAGE_COUNT);
+        System.arraycopy(source.pageOffset, 0, pageOffset, 0, PAGE_COUNT);
+        System.arraycopy(source.pagePolicy, 0, pagePolicy, 0, PAGE_COUNT);
+        System.arraycopy(source.pageHook, 0, pageHook, 0, PAGE_COUNT);
+        System.arraycopy(source.pageInMem, 0, pageInMem, 0, PAGE_COUNT);
+
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            if (source.pageShare[page] == null) { source.pageShare[page] = new Share(); }
+            pageShare[page] = source.pageShare[page];
+            pageShare[page].owners.incrementAndGet();
+        }
+        source.memShared = source.mem != null;
+        dirtyPages = source.dirtyPages;
+    }
 
 
     /**
@@ -45,41 +126,297 @@ public class Memory {
      * @return the byte read from the specified address
      */
     public int readByte(int address) {
-        return mem[address & 0xFFFF];
+        address &= 0xFFFF;
+        int page = address >>> PAGE_SHIFT;
+        return pageData[page][pageOffset[page] + address] & 0xFF;
     }
 
 
 
     /**
-     * Write one byte to the specified memory address
+     * Write one byte to the specified memory address,
+     * as the write policy of its page allows.
      *
      * @param address the memory address
      * @param value the byte to be written to the specified address
      */
     public void writeByte(int address, int value) {
-        mem[address & 0xFFFF] = value & 0xFF;
+        address &= 0xFFFF;
+        int page = address >>> PAGE_SHIFT;
+        int policy = pagePolicy[page];
+        if (policy == READ_ONLY) { return; }
+
+        if (pageShare[page] != null) { own(page); }
+        pageData[page][pageOffset[page] + address] = (byte) value;
+        dirtyPages |= 1L << page;
+        if (policy == HOOKED) { pageHook[page].written(address, value & 0xFF); }
+
+        if (watchedPages[address >>> 8]) { watcher.pageWritten(address >>> 8); }
+    }
+
+
+
+    /**
+     * Write one byte to the specified memory address, whatever the write
+     * policy of its page, for loading purposes. Hooks are still called.
+     *
+     * @param address the memory address
+     * @param value the byte to be written to the specified address
+     */
+    public void poke(int address, int value) {
+        address &= 0xFFFF;
+        int page = address >>> PAGE_SHIFT;
+
+        if (pageShare[page] != null) { own(page); }
+        pageData[page][pageOffset[page] + address] = (byte) value;
+        dirtyPages |= 1L << page;
+        if (pagePolicy[page] == HOOKED) { pageHook[page].written(address, value & 0xFF); }
+
+        if (watchedPages[address >>> 8]) { watcher.pageWritten(address >>> 8); }
+    }
+
+
+
+    /**
+     * Map a range of pages onto an array.
+     *
+     * @param address the address of the first page, a multiple of {@link #PAGE_SIZE}
+     * @param length the length of the range, a multiple of {@link #PAGE_SIZE}
+     * @param data the array backing the range
+     * @param offset the offset in the array the range starts at
+     * @param policy the write policy of the range, one of RAM, READ_ONLY and HOOKED
+     * @param hook the hook of a HOOKED range, ignored otherwise
+     */
+    public void map(int address, int length, byte[] data, int offset, int policy, WriteHook hook) {
+        checkRange(address, length);
+        if (policy == HOOKED && hook == null) { throw new IllegalArgumentException("Hooked pages need a hook"); }
+        if (offset < 0 || offset + length > data.length) { throw new IllegalArgumentException("Mapping outside the array"); }
+
+        for (int page = address >>> PAGE_SHIFT; page < (address + length) >>> PAGE_SHIFT; page++) {
+            release(page);
+            pageInMem[page] = data == mem && offset == address;
+            pageData[page] = data;
+            pageOffset[page] = offset - address;
+            pagePolicy[page] = policy;
+            pageHook[page] = policy == HOOKED ? hook : null;
+            dirtyPages |= 1L << page;
+        }
+
+        // whatever was decoded from the previous content is stale
+        for (int page = address >>> 8; page < (address + length) >>> 8; page++) {
+            if (watchedPages[page]) { watcher.pageWritten(page); }
+        }
+    }
+
+
+
+    /**
+     * Change the write policy of a range of pages, keeping their backing.
+     *
+     * @param address the address of the first page, a multiple of {@link #PAGE_SIZE}
+     * @param length the length of the range, a multiple of {@link #PAGE_SIZE}
+     * @param policy the write policy of the range, one of RAM, READ_ONLY and HOOKED
+     * @param hook the hook of a HOOKED range, ignored otherwise
+     */
+    public void setWritePolicy(int address, int length, int policy, WriteHook hook) {
+        checkRange(address, length);
+        if (policy == HOOKED && hook == null) { throw new IllegalArgumentException("Hooked pages need a hook"); }
+
+        for (int page = address >>> PAGE_SHIFT; page < (address + length) >>> PAGE_SHIFT; page++) {
+            pagePolicy[page] = policy;
+            pageHook[page] = policy == HOOKED ? hook : null;
+        }
+    }
+
+
+
+    private static void checkRange(int address, int length) {
+        if (((address | length) & (PAGE_SIZE - 1)) != 0 || address < 0 || length < 0 || address + length > 0x10000) {
+            throw new IllegalArgumentException("Not a range of whole pages: " + address + ", " + length);
+        }
+    }
+
+
+
+    /**
+     * Set the watcher to be notified about writes to the watched pages.
+     * Replacing the watcher clears all the watched pages.
+     *
+     * @param watcher the watcher, or null to remove the current one
+     */
+    public void setWriteWatcher(WriteWatcher watcher) {
+        Arrays.fill(watchedPages, false);
+        this.watcher = watcher;
+    }
+
+
+
+    /**
+     * Start or stop watching a 256-byte page for writes.
+     *
+     * @param page the page number, address >>> 8
+     * @param watched true to notify the watcher about writes to the page
+     */
+    public void watchPage(int page, boolean watched) {
+        watchedPages[page & 0xFF] = watched && watcher != null;
+    }
+
+
+
+    /**
+     * Copy a block of bytes into the memory at once, for example a ROM or
+     * a snapshot, whatever the write policies. The hooks are called for the
+     * bytes of the hooked pages, and the watcher is notified about the
+     * watched pages the block covers.
+     *
+     * @param address the memory address of the first byte
+     * @param data the bytes to copy
+     * @param offset the offset of the first byte in data
+     * @param length the number of bytes to copy, up to the end of the memory
+     */
+    public void load(int address, byte[] data, int offset, int length) {
+        address &= 0xFFFF;
+        length = Math.min(length, 0x10000 - address);
+
+        for (int end = address + length; address < end; ) {
+            int page = address >>> PAGE_SHIFT;
+            int chunk = Math.min(end, (page + 1) << PAGE_SHIFT) - address;
+            if (pageShare[page] != null) { own(page); }
+            System.arraycopy(data, offset, pageData[page], pageOffset[page] + address, chunk);
+            dirtyPages |= 1L << page;
+
+            if (pagePolicy[page] == HOOKED) {
+                for (int i = 0; i < chunk; i++) { pageHook[page].written(address + i, data[offset + i] & 0xFF); }
+            }
+            for (int watched = address >>> 8; watched <= (address + chunk - 1) >>> 8; watched++) {
+                if (watchedPages[watched]) { watcher.pageWritten(watched); }
+            }
+
+            address += chunk;
+            offset += chunk;
+        }
     }
 
 
 
     /**
-     * Provide direct access to the underlying memory array
+     * Provide direct access to the underlying memory array.
+     * The bytes are signed in Java, mask them with 0xFF.
+     * This is the address space as long as the pages are mapped
+     * the default way, to the array itself.
+     * Once forked, the pages are first gathered back into an array of
+     * this memory's own, which takes a copy of the whole memory.
      *
-     * @return an integer array representing the the memory
+     * @return a byte array representing the the memory
      */
-    public int[] getMemory() {
+    public byte[] getMemory() {
+        if (mem == null || memShared) { gather(); }
         return mem;
     }
 
 
 
+    /**
+     * Take the mask of the pages written to since the mask was last taken,
+     * and start over with all the pages clean.
+     *
+     * @return the dirty pages, page n as bit n
+     */
+    public long takeDirtyPages() {
+        long dirty = dirtyPages;
+        dirtyPages = 0;
+        return dirty;
+    }
+
+
+
+    /**
+     * Fork the memory. Both memories keep the same content, without
+     * copying it, until either one writes to it.
+     * The write policies and the hooks are the same as this memory's,
+     * a bus with hooks of its own sets them again on the fork.
+     * The fork has no write watcher. Fork from the thread the memory
+     * runs on, the fork itself can then run on any thread.
+     *
+     * @return the fork
+     */
+    public Memory fork() {
+        return new Memory(this);
+    }
+
+
+
+    /**
+     * Give up the pages shared with the forks, when discarding a fork,
+     * so that the other owners no longer clone them on write.
+     * The memory must not be used afterwards.
+     */
+    public void discard() {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            release(page);
+            pageData[page] = null;
+        }
+        mem = null;
+    }
+
+
+
+    /**
+     * Make a shared page this memory's own before writing to it,
+     * cloning it unless this memory is the last owner left.
+     */
+    private void own(int page) {
+        Share share = pageShare[page];
+        pageShare[page] = null;
+        if (share.owners.get() == 1) { return; }
+
+        byte[] copy = new byte[PAGE_SIZE];
+        int address = page << PAGE_SHIFT;
+        System.arraycopy(pageData[page], pageOffset[page] + address, copy, 0, PAGE_SIZE);
+        pageData[page] = copy;
+        pageOffset[page] = -address;
+        share.owners.decrementAndGet();
+    }
+
+
+
+    private void release(int page) {
+        Share share = pageShare[page];
+        if (share != null) {
+            share.owners.decrementAndGet();
+            pageShare[page] = null;
+        }
+    }
+
+
+
+    /**
+     * Gather the pages belonging in mem into a new array of this memory's own.
+     */
+    private void gather() {
+        byte[] own = new byte[0xffff + 1];
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            if (!pageInMem[page]) { continue; }
+
+            int address = page << PAGE_SHIFT;
+            System.arraycopy(pageData[page], pageOffset[page] + address, own, address, PAGE_SIZE);
+            release(page);
+            pageData[page] = own;
+            pageOffset[page] = 0;
+        }
+        mem = own;
+        memShared = false;
+    }
+
+
+
     /**
      * Get the memory size
      *
      * @return the memory size in bytes
      */
     public int getSize() {
-        return mem.length;
+        return 0xffff + 1;
     }
 
 
@@ -89,6 +426,38 @@ public class Memory {
      * by filling the array with zeros.
      */
     public void reset() {
-        Arrays.fill(mem, 0);
+        Arrays.fill(getMemory(), (byte) 0);
+        dirtyPages = -1L;
+
+        for (int page = 0; page < watchedPages.length; page++) {
+            if (watchedPages[page]) { watcher.pageWritten(page); }
+        }
+    }
+
+
+
+    /**
+     * Notified when a watched page of memory is written to.
+     */
+    public interface WriteWatcher {
+        void pageWritten(int page);
+    }
+
+
+
+    /**
+     * Called after a byte is written to a HOOKED page.
+     */
+    public interface WriteHook {
+        void written(int address, int value);
+    }
+
+
+
+    /**
+     * The owners of a shared page. Forks may run on other threads.
+     */
+    private static final class Share {
+        final AtomicInteger owners = new AtomicInteger(1);
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.device;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * The peripherals attached to the I/O ports, compiled into a decode table.
+ *
+ * <pre>
+ * Whenever a peripheral is attached or detached, every one of the 64K ports
+ * is resolved to the first attached peripheral decoding it, and the result
+ * is stored as a table of 256 rows, by the low byte of the port, of 256
+ * entries, by the high byte. An IN or an OUT is then one lookup in the table.
+ * Most peripherals only decode the low byte, so most rows hold a single
+ * peripheral, and share one array filled with it.
+ *
+ * Ports no peripheral decodes read 0xFF and ignore writes. The floating bus,
+ * the screen data left on the bus by the ULA, is not emulated.
+ *
+ * The accesses can be counted per port, to profile the I/O of a program.
+ * The counters take 512KB, they are only allocated while counting.
+ * </pre>
+ */
+public final class PortMap {
+
+    private static final Peripheral UNMAPPED = new Peripheral() {
+        @Override public int getPortMask() { return 0; }
+        @Override public int getPortMatch() { return 0; }
+        @Override public int readByte(int port) { return 0xff; }
+        @Override public void writeByte(int port, int data) { }
+    };
+
+    private final List<Peripheral> peripherals = new ArrayList<>();
+    private Peripheral[][] table;
+
+    // the accesses per port, null when not counting
+    private int[] reads;
+    private int[] writes;
+
+
+
+    public PortMap() { compile(); }
+
+
+
+    /**
+     * Attach a peripheral. It takes the ports it decodes that no
+     * previously attached peripheral decodes.
+     *
+     * @param peripheral the peripheral
+     */
+    public void attach(Peripheral peripheral) {
+        peripherals.add(peripheral);
+        compile();
+    }
+
+
+
+    /**
+     * Detach a peripheral, its ports go to the other peripherals decoding them, if any.
+     *
+     * @param peripheral the peripheral
+     */
+    public void detach(Peripheral peripheral) {
+        if (peripherals.remove(peripheral)) { compile(); }
+    }
+
+
+
+    /**
+     * Read one byte from the peripheral decoding the port.
+     *
+     * @param port the 16-bit port address
+     * @return the byte read
+     */
+    public int readByte(int port) {
+        port &= 0xffff;
+        int[] counters = reads;     // read once, the counting may be stopped from another thread
+        if (counters != null) { counters[port]++; }
+        return table[port & 0xff][port >>> 8].readByte(port);
+    }
+
+
+
+    /**
+     * Write one byte to the peripheral decoding the port.
+     *
+     * @param port the 16-bit port address
+     * @param data the byte to write
+     */
+    public void writeByte(int port, int data) {
+        port &= 0xffff;
+        int[] counters = writes;
+        if (counters != null) { counters[port]++; }
+        table[port & 0xff][port >>> 8].writeByte(port, data);
+    }
+
+
+
+    /**
+     * Start or stop counting the accesses per port.
+     * Starting clears the counters.
+     *
+     * @param counting true to count the accesses
+     */
+    public void setCounting(boolean counting) {
+        reads = counting ? new int[0x10000] : null;
+        writes = counting ? new int[0x10000] : null;
+    }
+
+
+
+    /**
+     * Print the busiest ports, and the peripheral decoding each one.
+     *
+     * @param out the stream to print to
+     * @param top the maximum number of ports printed
+     */
+    public void report(PrintStream out, int top) {
+        int[] reads = this.reads;
+        int[] writes = this.writes;
+        if (reads == null || writes == null) {
+            out.println("Port accesses are not counted");
+            return;
+        }
+
+        // sorted by count, then by port, packed as (count << 16) | (0xffff - port)
+        long[] ports = new long[0x10000];
+        for (int port = 0; port < ports.length; port++) {
+            ports[port] = (((long) reads[port] + writes[port]) << 16) | (0xffff - port);
+        }
+        Arrays.sort(ports);
+
+        out.println("port    reads       writes      peripheral");
+        for (int i = 0; i < top && i < ports.length; i++) {
+            long packed = ports[ports.length - 1 - i];
+            if (packed >>> 16 == 0) { break; }
+
+            int port = 0xffff - (int) (packed & 0xffff);
+
+            Peripheral peripheral = table[port & 0xff][port >>> 8];
+            String name = peripheral == UNMAPPED ? "-" : peripheral.getClass().getSimpleName();
+            out.printf("%04X    %-11d %-11d %s%n", port, reads[port], writes[port], name);
+        }
+    }
+
+
+
+    /**
+     * Resolve every port to its peripheral, sharing the rows
+     * that resolve to a single peripheral whatever the high byte.
+     */
+    private void compile() {
+        Peripheral[][] compiled = new Peripheral[256][];
+        Map<Peripheral, Peripheral[]> uniformRows = new IdentityHashMap<>();
+
+        for (int low = 0; low < 256; low++) {
+            Peripheral[] row = new Peripheral[256];
+            boolean uniform = true;
+            for (int high = 0; high < 256; high++) {
+                row[high] = resolve((high << 8) | low);
+                uniform &= row[high] == row[0];
+            }
+
+            if (uniform) {
+                Peripheral[] shared = uniformRows.get(row[0]);
+                if (shared == null) { uniformRows.put(row[0], row); } else { row = shared; }
+            }
+            compiled[low] = row;
+        }
+        table = compiled;
+    }
+
+
+
+    private Peripheral resolve(int port) {
+        for (Peripheral peripheral : peripherals) {
+            int mask = peripheral.getPortMask();
+            if ((port & mask) == (peripheral.getPortMatch() & mask)) { return peripheral; }
+        }
+        return UNMAPPED;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 71a1562385057d498290
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package sample.device;
+
+import java.util.Arrays;
+
+
+
+/**
+ * Keeps the timed events of the devices, ordered by the cycle they are due at.
+ *
+ * <pre>
+ * Instead of being stepped every single cycle, a device schedules an event for
+ * the next cycle it has anything to do at. The cpu then runs uninterrupted up to
+ * the earliest event, see {@link #getNextEventCycle()}, and the due events are
+ * dispatched. A periodic device simply schedules its next event when fired.
+ *
+ * The events are kept in a binary min-heap. Events due at the same cycle
+ * are dispatched in the order they were scheduled.
+ * </pre>
+ */
+public final class Scheduler {
+
+    private Event[] events = new Event[16];
+    private long[] cycles = new long[16];
+    private long[] order = new long[16];    // breaks the ties between events due at the same cycle
+
+    private int size = 0;
+    private long scheduled = 0;             // the total number of events ever scheduled
+
+
+
+    public Scheduler() { }
+
+
+
+    /**
+     * Schedule an event.
+     *
+     * @param event the event
+     * @param cycle the cycle count the event is due at
+     */
+    public void schedule(Event event, long cycle) {
+        if (size == events.length) {
+            events = Arrays.copyOf(events, size * 2);
+            cycles = Arrays.copyOf(cycles, size * 2);
+            order = Arrays.copyOf(order, size * 2);
+        }
+
+        int i = size++;
+        events[i] = event;
+        cycles[i] = cycle;
+        order[i] = scheduled++;
+        siftUp(i);
+    }
+
+
+
+    /**
+     * Remove all the pending occurrences of an event.
+     *
+     * @param event the event
+     */
+    public void cancel(Event event) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (events[i] != event) { move(i, kept++); }
+        }
+        Arrays.fill(events, kept, size, null);
+        size = kept;
+
+        for (int i = size / 2 - 1; i >= 0; i--) { siftDown(i); }
+    }
+
+
+
+    /**
+     * @return the cycle count the earliest event is due at, Long.MAX_VALUE if there is none
+     */
+    public long getNextEventCycle() {
+        return size == 0 ? Long.MAX_VALUE : cycles[0];
+    }
+
+
+
+    /**
+     * Dispatch all the events due at or before the given cycle count,
+     * including the ones scheduled by the fired events themselves.
+     *
+     * @param now the current cycle count
+     * @return the number of dispatched events
+     */
+    public int dispatch(long now) {
+        int dispatched = 0;
+
+        while (size > 0 && cycles[0] <= now) {
+            Event event = events[0];
+            long cycle = cycles[0];
+            removeAt(0);
+
+            event.fire(this, cycle);
+            dispatched++;
+        }
+
+        return dispatched;
+    }
+
+
+
+    /** Drop all the pending events. */
+    public void clear() {
+        Arrays.fill(events, 0, size, null);
+        size = 0;
+    }
+
+
+
+    private void removeAt(int i) {
+        size--;
+        if (i != size) {
+            move(size, i);
+            siftDown(i);
+            siftUp(i);
+        }
+        events[size] = null;
+    }
+
+
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(i, parent)) { break; }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) { break; }
+            if (child + 1 < size && before(child + 1, child)) { child++; }
+            if (!before(child, i)) { break; }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+
+
+    private boolean before(int a, int b) {
+        return cycles[a] < cycles[b] || (cycles[a] == cycles[b] && order[a] < order[b]);
+    }
+
+
+
+    private void swap(int a, int b) {
+        Event event = events[a]; events[a] = events[b]; events[b] = event;
+        long cycle = cycles[a]; cycles[a] = cycles[b]; cycles[b] = cycle;
+        long o = order[a]; order[a] = order[b]; order[b] = o;
+    }
+
+
+
+    private void move(int from, int to) {
+        events[to] = events[from];
+        cycles[to] = cycles[from];
+        order[to] = order[from];
+    }
+
+
+
+    /**
+     * A timed device event.
+     */
+    @FunctionalInterface
+    public interface Event {
+        /**
+         * Called when the event is due.
+         *
+         * @param scheduler the scheduler, used to schedule the next event
+         * @param cycle the cycle count the event was due at
+         */
+        void fire(Scheduler scheduler, long cycle);
+    }
+}
@@ -40,16 +40,24 @@ public final class CircularBuffer {
     private int idxR, idxW, occupied;
     private final int capacity;
 
-    private static final CircularBuffer INSTANCE = new CircularBuffer();
+    /**
+     * Construct the {@link CircularBuffer} with the default
+     * capacity of 32768 bytes.
+     */
+    public CircularBuffer() {
+        this(4 * 8192);
+    }
 
 
 
     /**
-     * Construct the {@link CircularBuffer} with a fixed
-     * capacity of 32768 bytes.
+     * Construct the {@link CircularBuffer} with a fixed capacity.
+     * Every machine has its own buffer, shared only with its audio thread.
+     *
+     * @param capacity the capacity in bytes
      */
-    private CircularBuffer() {
-        capacity = 4 * 8192;
+    public CircularBuffer(int capacity) {
+        this.capacity = capacity;
         buffer = new byte[capacity];
 
         idxR = 0;
@@ -60,17 +68,6 @@ public final class CircularBuffer {
 
 
 
-    /**
-     * Get the {@link CircularBuffer} instance.
-     *
-     * @return the {@link CircularBuffer} instance
-     */
-    public static CircularBuffer getInstance() {
-        return INSTANCE;
-    }
-
-
-
     /**
      * Put as many items as possible from the source array into the buffer
      * and return the actual number of items added.